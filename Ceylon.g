@@ -24,6 +24,25 @@ options {
     public java.util.List<ParseError> getErrors() {
         return errors;
     }
+    private ParserProfile.Recorder recorder;
+    /**
+     * A parser recording how often each rule and decision
+     * of the grammar is invoked, how far it looks ahead,
+     * and how long it backtracks, into the given profile.
+     */
+    public CeylonParser(TokenStream input, 
+            ParserProfile profile, String unitName) {
+        this(profile.recorder(input, unitName));
+        recorder = (ParserProfile.Recorder) this.input;
+    }
+    //the parser is generated with -trace, which makes
+    //every rule notify the profile, if any
+    @Override public void traceIn(String ruleName, int ruleIndex) {
+        if (recorder!=null) recorder.ruleEntered(ruleName);
+    }
+    @Override public void traceOut(String ruleName, int ruleIndex) {
+        if (recorder!=null) recorder.ruleExited(state.failed);
+    }
     int expecting=-1;
   @Override
   protected Object getMissingSymbol(IntStream input,
@@ -57,6 +76,9 @@ options {
     public java.util.List<LexError> getErrors() {
         return errors;
     }
+    //generated with -trace for the parser
+    @Override public void traceIn(String ruleName, int ruleIndex) {}
+    @Override public void traceOut(String ruleName, int ruleIndex) {}
 }
 
 compilationUnit returns [CompilationUnit compilationUnit]
@@ -1643,8 +1665,6 @@ qualifiedReference returns [Identifier identifier, MemberOperator operator,
                             TypeArgumentList typeArgumentList, boolean isMember]
     : memberSelectionOperator 
       { $operator = $memberSelectionOperator.operator;
-        $identifier = new Identifier($operator.getToken());
-        $identifier.setText("");
         $isMember=true; }
       ( 
         memberReference
@@ -1659,6 +1679,15 @@ qualifiedReference returns [Identifier identifier, MemberOperator operator,
               new MismatchedTokenException(LIDENTIFIER, input)); }
       )
     ;
+    finally {
+      //an empty identifier, created only when the name
+      //is missing, since the text of a node is kept by 
+      //the source map even when the node is discarded
+      if ($identifier==null && $operator!=null) {
+        $identifier = new Identifier($operator.getToken());
+        $identifier.setText("");
+      }
+    }
 
 memberSelectionOperator returns [MemberOperator operator]
     : MEMBER_OP
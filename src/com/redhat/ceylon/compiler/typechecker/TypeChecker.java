@@ -1,16 +1,32 @@
 package com.redhat.ceylon.compiler.typechecker;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import com.redhat.ceylon.cmr.api.RepositoryManager;
 import com.redhat.ceylon.common.Versions;
+import com.redhat.ceylon.compiler.typechecker.analyzer.ModuleManager;
 import com.redhat.ceylon.compiler.typechecker.analyzer.ModuleValidator;
 import com.redhat.ceylon.compiler.typechecker.context.Context;
+import com.redhat.ceylon.compiler.typechecker.context.DiagnosticListener;
+import com.redhat.ceylon.compiler.typechecker.context.PhaseExecutor;
+import com.redhat.ceylon.compiler.typechecker.context.PhaseListener;
+import com.redhat.ceylon.compiler.typechecker.context.PhaseStatistics;
 import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
 import com.redhat.ceylon.compiler.typechecker.context.PhasedUnits;
+import com.redhat.ceylon.compiler.typechecker.context.TreeCache;
 import com.redhat.ceylon.compiler.typechecker.io.VFS;
 import com.redhat.ceylon.compiler.typechecker.io.VirtualFile;
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
+import com.redhat.ceylon.compiler.typechecker.model.Unit;
+import com.redhat.ceylon.compiler.typechecker.model.Util;
+import com.redhat.ceylon.compiler.typechecker.parser.ParserProfile;
 import com.redhat.ceylon.compiler.typechecker.tree.Message;
 import com.redhat.ceylon.compiler.typechecker.util.AssertionVisitor;
 import com.redhat.ceylon.compiler.typechecker.util.ModuleManagerFactory;
@@ -34,11 +50,22 @@ public class TypeChecker {
     private final boolean verifyDependencies;
     private final AssertionVisitor assertionVisitor;
     private final StatisticsVisitor statsVisitor;
+    private final int parallelism;
+    private final List<PhaseListener> phaseListeners;
+    private final PhaseStatistics phaseStatistics;
+    private final boolean lazy;
+    private final List<DiagnosticListener> diagnosticListeners;
+    private final int errorLimit;
+    private volatile boolean errorLimitReached;
 
     //package level
     TypeChecker(VFS vfs, List<VirtualFile> srcDirectories, RepositoryManager repositoryManager, boolean verifyDependencies,
             AssertionVisitor assertionVisitor, ModuleManagerFactory moduleManagerFactory, boolean verbose, boolean statistics,
-            List<String> moduleFilters, String encoding) {
+            List<String> moduleFilters, String encoding, int parallelism, TreeCache treeCache,
+            List<PhaseListener> phaseListeners, boolean lazy,
+            List<DiagnosticListener> diagnosticListeners, int errorLimit,
+            boolean leanMemory, ParserProfile parserProfile,
+            boolean generatedLexer) {
         long start = System.nanoTime();
         this.verbose = verbose;
         this.statistics = statistics;
@@ -47,8 +74,25 @@ public class TypeChecker {
         this.verifyDependencies = verifyDependencies;
         this.assertionVisitor = assertionVisitor;
         statsVisitor = new StatisticsVisitor();
+        this.parallelism = parallelism;
+        this.lazy = lazy;
+        this.diagnosticListeners = new ArrayList<DiagnosticListener>(diagnosticListeners);
+        this.errorLimit = errorLimit;
+        this.phaseListeners = new ArrayList<PhaseListener>(phaseListeners);
+        if (statistics) {
+            phaseStatistics = new PhaseStatistics();
+            this.phaseListeners.add(phaseStatistics);
+        }
+        else {
+            phaseStatistics = null;
+        }
         phasedUnits.setModuleFilters(moduleFilters);
         phasedUnits.setEncoding(encoding);
+        phasedUnits.setParallelism(parallelism);
+        phasedUnits.setLeanMemory(leanMemory);
+        phasedUnits.setParserProfile(parserProfile);
+        phasedUnits.setGeneratedLexer(generatedLexer);
+        phasedUnits.setTreeCache(treeCache);
         phasedUnits.parseUnits(srcDirectories);
         long time = System.nanoTime()-start;
         if(statistics)
@@ -126,8 +170,145 @@ public class TypeChecker {
         long start = System.nanoTime();
         executePhases(phasedUnits, forceSilence);
         long time = System.nanoTime()-start;
-        if(statistics)
+        if(statistics) {
         	System.out.println("Type checked in " + time/1000000 + " ms");
+        	phaseStatistics.print(10);
+        }
+    }
+
+    /**
+     * Is this type checker lazy? A lazy type checker only
+     * scans the declarations of every unit, and validates
+     * refinement, when {@link #process()} is called, and
+     * fully type checks a unit only when 
+     * {@link #ensureFullyTyped(PhasedUnit)} is called.
+     * The errors of a unit are not known until then, and
+     * are not reported by {@link #process()}.
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Run the remaining phases on the given unit, after a
+     * previous call to {@link #process()} by a
+     * {@link #isLazy() lazy} type checker, along with
+     * the {@link PhasedUnit#analyseTypes() type analysis}
+     * of any unit of the same package declaring a toplevel
+     * whose type it must infer. Has no effect if the unit
+     * has already been fully type checked.
+     *
+     * @param phasedUnit a unit of this type checker
+     */
+    public void ensureFullyTyped(PhasedUnit phasedUnit) {
+        if (phasedUnit.isFullyTyped() && 
+                phasedUnit.isFlowAnalyzed() && 
+                phasedUnit.isUsageAnalyzed()) {
+            return;
+        }
+        PhaseExecutor executor = createExecutor();
+        try {
+            executor.complete(phasedUnit, phasedUnits.getPhasedUnits());
+        }
+        finally {
+            errorLimitReached = executor.isErrorLimitReached();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Type check again, after a previous call to
+     * {@link #process()}, the given changed source files,
+     * along with every unit which transitively depends on
+     * one of them, according to
+     * {@link Unit#getDependentsOf()}. The other units are
+     * left untouched. Module and package descriptors may
+     * not be rechecked this way, since changing them may
+     * affect every unit of the module. A {@link #isLazy() 
+     * lazy} type checker only scans the declarations of 
+     * the new units.
+     *
+     * @param changed the changed source files, which must
+     *        already belong to this type checker
+     * @return the new phased units that were type checked
+     */
+    public List<PhasedUnit> recheck(Collection<VirtualFile> changed) {
+        long start = System.nanoTime();
+        Set<PhasedUnit> stale = new LinkedHashSet<PhasedUnit>();
+        LinkedList<PhasedUnit> queue = new LinkedList<PhasedUnit>();
+        for (VirtualFile file: changed) {
+            PhasedUnit pu = phasedUnits.getPhasedUnit(file);
+            if (pu==null) {
+                throw new IllegalArgumentException("not a source file of this type checker: " +
+                        file.getPath());
+            }
+            if (file.getName().equals(ModuleManager.MODULE_FILE) ||
+                    file.getName().equals(ModuleManager.PACKAGE_FILE)) {
+                throw new IllegalArgumentException("descriptors may not be rechecked: " +
+                        file.getPath());
+            }
+            queue.add(pu);
+        }
+        //collect the transitive dependents before the
+        //old units are removed from their packages
+        while (!queue.isEmpty()) {
+            PhasedUnit pu = queue.removeFirst();
+            if (stale.add(pu)) {
+                for (String path: pu.getUnit().getDependentsOf()) {
+                    PhasedUnit dependent =
+                            phasedUnits.getPhasedUnitFromRelativePath(path);
+                    if (dependent!=null) {
+                        queue.add(dependent);
+                    }
+                }
+            }
+        }
+        //forget the supertypes cached for the old
+        //declarations
+        for (PhasedUnit pu: stale) {
+            for (Declaration d: pu.getUnit().getDeclarations()) {
+                if (d instanceof TypeDeclaration) {
+                    Util.clearProducedTypeCache((TypeDeclaration) d);
+                }
+            }
+        }
+        List<PhasedUnit> listOfUnits =
+                phasedUnits.reparseUnits(new ArrayList<PhasedUnit>(stale));
+        PhaseExecutor executor = createExecutor();
+        try {
+            if (lazy) {
+                executor.executeLeadingPhases(listOfUnits);
+            }
+            else {
+                executor.executePhases(listOfUnits);
+            }
+        }
+        finally {
+            errorLimitReached = executor.isErrorLimitReached();
+            executor.shutdown();
+        }
+        long time = System.nanoTime()-start;
+        if(statistics)
+        	System.out.println("Rechecked " + listOfUnits.size() +
+        	        " units in " + time/1000000 + " ms");
+        return listOfUnits;
+    }
+
+    private PhaseExecutor createExecutor() {
+        PhaseExecutor executor = new PhaseExecutor(parallelism, phaseListeners);
+        executor.setDiagnosticListeners(diagnosticListeners, errorLimit);
+        return executor;
+    }
+
+    /**
+     * Did the last call to {@link #process()}, 
+     * {@link #recheck(Collection)}, or 
+     * {@link #ensureFullyTyped(PhasedUnit)} stop before 
+     * type checking every unit, because the error limit
+     * was reached?
+     */
+    public boolean isErrorLimitReached() {
+        return errorLimitReached;
     }
 
     private void executePhases(PhasedUnits phasedUnits, boolean forceSilence) {
@@ -150,27 +331,21 @@ public class TypeChecker {
         }
         phasedUnitsOfDependencies = moduleValidator.getPhasedUnitsOfDependencies();
 
-        for (PhasedUnit pu : listOfUnits) {
-            pu.validateTree();
-            pu.scanDeclarations();
-        }
-        for (PhasedUnit pu : listOfUnits) {
-            pu.scanTypeDeclarations();
-        }
-        for (PhasedUnit pu: listOfUnits) {
-            pu.validateRefinement();
-        }
-        for (PhasedUnit pu : listOfUnits) {
-            pu.analyseTypes();
-        }
-        for (PhasedUnit pu: listOfUnits) {
-            pu.analyseFlow();
+        PhaseExecutor executor = createExecutor();
+        try {
+            if (lazy) {
+                executor.executeLeadingPhases(listOfUnits);
+            }
+            else {
+                executor.executePhases(listOfUnits);
+            }
         }
-        for (PhasedUnit pu: listOfUnits) {
-            pu.analyseUsage();
+        finally {
+            errorLimitReached = executor.isErrorLimitReached();
+            executor.shutdown();
         }
 
-        if (!forceSilence) {
+        if (!forceSilence && !lazy) {
             for (PhasedUnit pu : listOfUnits) {
                 if (verbose) {
                     pu.display();
@@ -6,9 +6,15 @@ import java.util.List;
 
 import com.redhat.ceylon.cmr.api.RepositoryManager;
 import com.redhat.ceylon.cmr.ceylon.CeylonUtils;
+import com.redhat.ceylon.compiler.typechecker.context.DiagnosticListener;
+import com.redhat.ceylon.compiler.typechecker.context.PhaseListener;
+import com.redhat.ceylon.compiler.typechecker.context.TreeCache;
 import com.redhat.ceylon.compiler.typechecker.io.VFS;
 import com.redhat.ceylon.compiler.typechecker.io.VirtualFile;
 import com.redhat.ceylon.compiler.typechecker.io.cmr.impl.LeakingLogger;
+import com.redhat.ceylon.compiler.typechecker.parser.CeylonLexer;
+import com.redhat.ceylon.compiler.typechecker.parser.CeylonScanner;
+import com.redhat.ceylon.compiler.typechecker.parser.ParserProfile;
 import com.redhat.ceylon.compiler.typechecker.util.AssertionVisitor;
 import com.redhat.ceylon.compiler.typechecker.util.ModuleManagerFactory;
 
@@ -38,6 +44,15 @@ public class TypeCheckerBuilder {
     private ModuleManagerFactory moduleManagerFactory;
     private RepositoryManager repositoryManager;
     private List<String> moduleFilters = new ArrayList<String>();
+    private int parallelism = 1;
+    private File treeCacheDirectory;
+    private List<PhaseListener> phaseListeners = new ArrayList<PhaseListener>();
+    private boolean lazy = false;
+    private List<DiagnosticListener> diagnosticListeners = new ArrayList<DiagnosticListener>();
+    private int errorLimit = 0;
+    private boolean leanMemory = false;
+    private ParserProfile parserProfile;
+    private boolean generatedLexer = false;
 
     public TypeCheckerBuilder() {}
 
@@ -126,6 +141,137 @@ public class TypeCheckerBuilder {
         return this;
     }
 
+    /**
+     * Sets the number of threads used to parse and type
+     * check the source files. The default, 1, does all
+     * the work on the calling thread.
+     *
+     * @param parallelism the number of worker threads
+     * @return type checker builder instance.
+     */
+    public TypeCheckerBuilder parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets a directory in which the trees parsed from the
+     * source files are cached, to avoid lexing and parsing
+     * the files that have not changed since the previous 
+     * run again. By default, there is no cache.
+     *
+     * @param treeCacheDirectory the cache directory
+     * @return type checker builder instance.
+     */
+    public TypeCheckerBuilder treeCache(File treeCacheDirectory) {
+        this.treeCacheDirectory = treeCacheDirectory;
+        return this;
+    }
+
+    /**
+     * Adds a listener notified of the time taken by each
+     * type checking phase, by each unit in each phase, and
+     * by each visitor. With {@link #statistics(boolean)
+     * statistics} enabled, a summary of the slowest units
+     * and visitors is also printed.
+     *
+     * @param phaseListener the listener
+     * @return type checker builder instance.
+     */
+    public TypeCheckerBuilder phaseListener(PhaseListener phaseListener) {
+        this.phaseListeners.add(phaseListener);
+        return this;
+    }
+
+    /**
+     * Enables or disables lazy type checking, where only
+     * the declarations of every unit are scanned up front,
+     * and a unit is fully type checked only on request.
+     *
+     * @param lazy true for a lazy type checker
+     * @return type checker builder instance.
+     * @see TypeChecker#ensureFullyTyped(com.redhat.ceylon.compiler.typechecker.context.PhasedUnit)
+     */
+    public TypeCheckerBuilder lazy(boolean lazy) {
+        this.lazy = lazy;
+        return this;
+    }
+
+    /**
+     * Adds a listener receiving each error and warning as
+     * soon as it is found, instead of once every unit has
+     * been type checked. To avoid walking every tree again
+     * in order to print the messages, process the units
+     * with {@link TypeChecker#process(boolean) 
+     * forceSilence}.
+     *
+     * @param diagnosticListener the listener
+     * @return type checker builder instance.
+     */
+    public TypeCheckerBuilder diagnosticListener(DiagnosticListener diagnosticListener) {
+        this.diagnosticListeners.add(diagnosticListener);
+        return this;
+    }
+
+    /**
+     * Sets the number of errors after which no further
+     * unit is type checked. The default, 0, means no limit.
+     *
+     * @param errorLimit the maximum number of errors
+     * @return type checker builder instance.
+     */
+    public TypeCheckerBuilder errorLimit(int errorLimit) {
+        this.errorLimit = errorLimit;
+        return this;
+    }
+
+    /**
+     * Enables or disables the lean memory mode, for batch
+     * compilation, where the token list of each unit is 
+     * dropped once it has been parsed, and the tokens of 
+     * its tree no longer refer to the source text.
+     * {@link com.redhat.ceylon.compiler.typechecker.context.PhasedUnit#getTokens()}
+     * then returns null.
+     *
+     * @param leanMemory true for the lean memory mode
+     * @return type checker builder instance.
+     */
+    public TypeCheckerBuilder leanMemory(boolean leanMemory) {
+        this.leanMemory = leanMemory;
+        return this;
+    }
+
+    /**
+     * Sets a profile into which the parser of each source
+     * file records how often each rule and decision of the
+     * grammar is invoked, how far it looks ahead, and how
+     * long it backtracks. Parsing is slower while profiling.
+     *
+     * @param parserProfile the profile, or null for none
+     * @return type checker builder instance.
+     * @see ParserProfile#print(java.io.PrintStream, int)
+     */
+    public TypeCheckerBuilder parserProfile(ParserProfile parserProfile) {
+        this.parserProfile = parserProfile;
+        return this;
+    }
+
+    /**
+     * Lex the source files with the {@link CeylonLexer}
+     * generated from the grammar, instead of the hand 
+     * written {@link CeylonScanner}, which produces the
+     * same tokens faster. By default, the scanner is used.
+     * The two lexers are compared by 
+     * {@code main.MainForLexerComparison}.
+     *
+     * @param generatedLexer true for the generated lexer
+     * @return type checker builder instance.
+     */
+    public TypeCheckerBuilder generatedLexer(boolean generatedLexer) {
+        this.generatedLexer = generatedLexer;
+        return this;
+    }
+
     public TypeChecker getTypeChecker() {
         if (repositoryManager == null) {
             repositoryManager = CeylonUtils.repoManager()
@@ -133,7 +279,10 @@ public class TypeCheckerBuilder {
                     .buildManager();
         }
         return new TypeChecker(vfs, srcDirectories, repositoryManager, verifyDependencies, assertionVisitor,
-                moduleManagerFactory, verbose, statistics, moduleFilters, encoding);
+                moduleManagerFactory, verbose, statistics, moduleFilters, encoding, parallelism,
+                treeCacheDirectory==null ? null : new TreeCache(treeCacheDirectory),
+                phaseListeners, lazy, diagnosticListeners, errorLimit,
+                leanMemory, parserProfile, generatedLexer);
     }
 
 }
@@ -230,7 +230,7 @@ public class DeclarationVisitor extends Visitor implements NaturalVisitor {
                                 ((Method) member).setOverloaded(true);
                                 abstraction.setOverloads(new ArrayList<Declaration>());
                                 abstraction.getOverloads().add(member);
-                                s.getMembers().add(abstraction);
+                                s.addMember(abstraction);
                             }
                             else {
                                 abstraction = (Method) member;
@@ -302,8 +302,7 @@ public class DeclarationVisitor extends Visitor implements NaturalVisitor {
         unit.setFilename(filename);
         unit.setFullPath(fullPath);
         unit.setRelativePath(relativePath);
-        pkg.removeUnit(unit);
-        pkg.addUnit(unit);
+        pkg.replaceUnit(unit);
         super.visit(that);
         Node firstNonImportNode = null;
         int index = -1;
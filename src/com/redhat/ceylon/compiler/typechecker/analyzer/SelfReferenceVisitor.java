@@ -3,6 +3,8 @@ package com.redhat.ceylon.compiler.typechecker.analyzer;
 import static com.redhat.ceylon.compiler.typechecker.analyzer.Util.eliminateParensAndWidening;
 import static com.redhat.ceylon.compiler.typechecker.analyzer.Util.getLastExecutableStatement;
 
+import java.util.List;
+
 import com.redhat.ceylon.compiler.typechecker.model.Constructor;
 import com.redhat.ceylon.compiler.typechecker.model.Declaration;
 import com.redhat.ceylon.compiler.typechecker.model.MethodOrValue;
@@ -24,13 +26,50 @@ import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
 public class SelfReferenceVisitor extends Visitor {
     
     private final TypeDeclaration typeDeclaration;
+    private final ToplevelReferenceVisitor references;
     private Tree.Statement lastExecutableStatement;
     private boolean declarationSection = false;
     private int nestedLevel = -1;
     private boolean defaultArgument;
 
     public SelfReferenceVisitor(TypeDeclaration td) {
+        this(td, null);
+    }
+    
+    /**
+     * @param references if not null, visit only the 
+     *        toplevel declaration containing the type 
+     *        declaration
+     */
+    public SelfReferenceVisitor(TypeDeclaration td,
+            ToplevelReferenceVisitor references) {
         typeDeclaration = td;
+        this.references = references;
+    }
+    
+    @Override
+    public void visit(Tree.CompilationUnit that) {
+        Tree.Declaration toplevel = references==null ? 
+                null : references.getToplevel(typeDeclaration);
+        if (toplevel==null) {
+            super.visit(that);
+        }
+        else {
+            //the type declaration can only be referred to
+            //within its own toplevel declaration, but a
+            //reference to super in a default argument is 
+            //an error wherever it occurs
+            toplevel.visit(this);
+            List<Super> supers = 
+                    references.getSuperReferencesInParameters();
+            List<Tree.Declaration> toplevels = 
+                    references.getSuperReferenceToplevels();
+            for (int i=0,l=supers.size();i<l;i++) {
+                if (toplevels.get(i)!=toplevel) {
+                    superInDefaultArgument(supers.get(i));
+                }
+            }
+        }
     }
     
     private void visitExtendedType(Tree.ExtendedTypeExpression that) {
@@ -310,9 +349,13 @@ public class SelfReferenceVisitor extends Visitor {
     public void visit(Super that) {
         super.visit(that);
         if (defaultArgument) {
-            that.addError("reference to super from default argument expression");
+            superInDefaultArgument(that);
         }
     }
+    
+    private static void superInDefaultArgument(Super that) {
+        that.addError("reference to super from default argument expression");
+    }
 
     @Override
     public void visit(Tree.Return that) {
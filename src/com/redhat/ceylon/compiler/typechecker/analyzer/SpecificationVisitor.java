@@ -7,6 +7,8 @@ import static com.redhat.ceylon.compiler.typechecker.analyzer.Util.isEffectively
 import static com.redhat.ceylon.compiler.typechecker.analyzer.Util.isNeverSatisfied;
 import static com.redhat.ceylon.compiler.typechecker.model.Util.getContainingDeclarationOfScope;
 
+import java.util.List;
+
 import com.redhat.ceylon.compiler.typechecker.model.Class;
 import com.redhat.ceylon.compiler.typechecker.model.Constructor;
 import com.redhat.ceylon.compiler.typechecker.model.Declaration;
@@ -33,6 +35,7 @@ import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
 public class SpecificationVisitor extends Visitor {
     
     private final Declaration declaration;
+    private final List<Tree.Declaration> toplevels;
     
     private SpecificationState specified = 
             new SpecificationState(false, false);
@@ -93,7 +96,20 @@ public class SpecificationVisitor extends Visitor {
     }
     
     public SpecificationVisitor(Declaration declaration) {
+        this(declaration, null);
+    }
+    
+    /**
+     * @param toplevels the toplevel declarations to visit,
+     *        in order, or null to visit every toplevel
+     *        declaration of the compilation unit
+     * 
+     * @see ToplevelReferenceVisitor#getToplevels(Declaration)
+     */
+    public SpecificationVisitor(Declaration declaration,
+            List<Tree.Declaration> toplevels) {
         this.declaration = declaration;
+        this.toplevels = toplevels;
     }
     
     private void declare() {
@@ -496,7 +512,9 @@ public class SpecificationVisitor extends Visitor {
     
     @Override
     public void visit(Tree.CompilationUnit that) {
-    	for (Tree.Declaration st: that.getDeclarations()) {
+        List<Tree.Declaration> declarations = toplevels==null ?
+                that.getDeclarations() : toplevels;
+    	for (Tree.Declaration st: declarations) {
     		withinAttributeInitializer = 
     				(st instanceof Tree.AttributeDeclaration) &&
     				st.getDeclarationModel()==declaration &&
@@ -0,0 +1,195 @@
+package com.redhat.ceylon.compiler.typechecker.analyzer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.Package;
+import com.redhat.ceylon.compiler.typechecker.model.Scope;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * Records, in a single walk of a compilation unit, which
+ * of its toplevel declarations refer to each declaration,
+ * so that the {@link SpecificationVisitor} and the
+ * {@link SelfReferenceVisitor} for a declaration need
+ * only walk the toplevel declarations which can affect
+ * their result, instead of the whole unit.
+ *
+ * A toplevel declaration which neither contains a
+ * declaration nor refers to it leaves the state of the
+ * specification visitor unchanged, since the visitor
+ * restores its state at the end of every declaration,
+ * and results in no error.
+ */
+public class ToplevelReferenceVisitor extends Visitor {
+
+    private final Map<Declaration,Tree.Declaration> toplevels =
+            new IdentityHashMap<Declaration,Tree.Declaration>();
+    private final Map<Tree.Declaration,Integer> indexes =
+            new IdentityHashMap<Tree.Declaration,Integer>();
+    private final Map<Declaration,List<Tree.Declaration>> references =
+            new IdentityHashMap<Declaration,List<Tree.Declaration>>();
+    private final List<Tree.Super> supers =
+            new ArrayList<Tree.Super>();
+    private final List<Tree.Declaration> superToplevels =
+            new ArrayList<Tree.Declaration>();
+    private Tree.Declaration toplevel;
+    private boolean inParameter;
+
+    @Override
+    public void visit(Tree.CompilationUnit that) {
+        List<Tree.Declaration> declarations = 
+                that.getDeclarations();
+        for (int i=0,l=declarations.size();i<l;i++) {
+            Tree.Declaration st = declarations.get(i);
+            Declaration model = st.getDeclarationModel();
+            if (model!=null) {
+                toplevels.put(model, st);
+            }
+            indexes.put(st, i);
+        }
+        super.visit(that);
+    }
+
+    @Override
+    public void visit(Tree.Declaration that) {
+        if (toplevel==null) {
+            toplevel = that;
+            super.visit(that);
+            toplevel = null;
+        }
+        else {
+            super.visit(that);
+        }
+    }
+
+    @Override
+    public void visit(Tree.MemberOrTypeExpression that) {
+        super.visit(that);
+        referenced(that.getDeclaration());
+    }
+
+    @Override
+    public void visit(Tree.MetaLiteral that) {
+        super.visit(that);
+        referenced(that.getDeclaration());
+    }
+
+    @Override
+    public void visit(Tree.AnnotationList that) {
+        //not visited by the SpecificationVisitor
+        //or by the SelfReferenceVisitor
+    }
+
+    @Override
+    public void visit(Tree.Parameter that) {
+        boolean oip = inParameter;
+        inParameter = true;
+        super.visit(that);
+        inParameter = oip;
+    }
+
+    @Override
+    public void visit(Tree.Super that) {
+        super.visit(that);
+        if (inParameter) {
+            supers.add(that);
+            superToplevels.add(toplevel);
+        }
+    }
+
+    private void referenced(Declaration d) {
+        if (d!=null && toplevel!=null) {
+            List<Tree.Declaration> list = references.get(d);
+            if (list==null) {
+                list = new ArrayList<Tree.Declaration>(2);
+                references.put(d, list);
+            }
+            //toplevel declarations are visited in order,
+            //so a repeated one is always the last one
+            if (list.isEmpty() ||
+                    list.get(list.size()-1)!=toplevel) {
+                list.add(toplevel);
+            }
+        }
+    }
+
+    /**
+     * The toplevel declaration containing the given
+     * declaration.
+     *
+     * @return the toplevel declaration, or null if it
+     *         does not belong to this unit
+     */
+    public Tree.Declaration getToplevel(Declaration d) {
+        Declaration result = d;
+        Scope scope = d.getContainer();
+        while (scope!=null && !(scope instanceof Package)) {
+            if (scope instanceof Declaration) {
+                result = (Declaration) scope;
+            }
+            scope = scope.getContainer();
+        }
+        return scope==null ? null : toplevels.get(result);
+    }
+
+    /**
+     * The toplevel declarations which contain or refer to
+     * the given declaration, in the order they occur in
+     * the unit.
+     *
+     * @return the toplevel declarations, or null if the
+     *         containing toplevel declaration is unknown
+     */
+    public List<Tree.Declaration> getToplevels(Declaration d) {
+        Tree.Declaration container = getToplevel(d);
+        if (container==null) {
+            return null;
+        }
+        List<Tree.Declaration> list = references.get(d);
+        if (list==null) {
+            return Collections.singletonList(container);
+        }
+        if (list.contains(container)) {
+            return list;
+        }
+        List<Tree.Declaration> result =
+                new ArrayList<Tree.Declaration>(list.size()+1);
+        int index = indexes.get(container);
+        boolean added = false;
+        for (Tree.Declaration st: list) {
+            if (!added && indexes.get(st)>index) {
+                result.add(container);
+                added = true;
+            }
+            result.add(st);
+        }
+        if (!added) {
+            result.add(container);
+        }
+        return result;
+    }
+
+    /**
+     * The references to super occurring in a parameter
+     * list, which are errors whatever the type declaration.
+     */
+    List<Tree.Super> getSuperReferencesInParameters() {
+        return supers;
+    }
+
+    /**
+     * The toplevel declarations containing each of the
+     * {@link #getSuperReferencesInParameters() references
+     * to super}.
+     */
+    List<Tree.Declaration> getSuperReferenceToplevels() {
+        return superToplevels;
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * Forwards every event to each of a list of listeners.
+ */
+class CompositePhaseListener implements PhaseListener {
+
+    private final List<PhaseListener> listeners;
+
+    CompositePhaseListener(List<PhaseListener> listeners) {
+        this.listeners = new ArrayList<PhaseListener>(listeners);
+    }
+
+    /**
+     * A single listener for the given listeners, or null
+     * if there are none.
+     */
+    static PhaseListener of(List<PhaseListener> listeners) {
+        switch (listeners.size()) {
+        case 0:
+            return null;
+        case 1:
+            return listeners.get(0);
+        default:
+            return new CompositePhaseListener(listeners);
+        }
+    }
+
+    @Override
+    public void phaseStarted(Phase phase) {
+        for (int i=0,l=listeners.size();i<l;i++) {
+            listeners.get(i).phaseStarted(phase);
+        }
+    }
+
+    @Override
+    public void phaseFinished(Phase phase, long nanos) {
+        for (int i=0,l=listeners.size();i<l;i++) {
+            listeners.get(i).phaseFinished(phase, nanos);
+        }
+    }
+
+    @Override
+    public void unitStarted(Phase phase, PhasedUnit unit) {
+        for (int i=0,l=listeners.size();i<l;i++) {
+            listeners.get(i).unitStarted(phase, unit);
+        }
+    }
+
+    @Override
+    public void unitFinished(Phase phase, PhasedUnit unit,
+            long nanos, long allocatedBytes) {
+        for (int i=0,l=listeners.size();i<l;i++) {
+            listeners.get(i).unitFinished(phase, unit,
+                    nanos, allocatedBytes);
+        }
+    }
+
+    @Override
+    public void visitorStarted(PhasedUnit unit,
+            Class<? extends Visitor> visitor) {
+        for (int i=0,l=listeners.size();i<l;i++) {
+            listeners.get(i).visitorStarted(unit, visitor);
+        }
+    }
+
+    @Override
+    public void visitorFinished(PhasedUnit unit,
+            Class<? extends Visitor> visitor,
+            long nanos, long allocatedBytes) {
+        for (int i=0,l=listeners.size();i<l;i++) {
+            listeners.get(i).visitorFinished(unit, visitor,
+                    nanos, allocatedBytes);
+        }
+    }
+
+}
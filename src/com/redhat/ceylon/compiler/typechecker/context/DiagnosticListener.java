@@ -0,0 +1,28 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import com.redhat.ceylon.compiler.typechecker.tree.Message;
+
+/**
+ * Receives the errors and warnings of each unit as soon as
+ * they are added to its tree, instead of once every phase
+ * has finished. The lex and parse errors of a unit are
+ * received just before its first phase starts. Messages
+ * added while visiting modules and validating module
+ * dependencies, outside of the phases, are not received.
+ *
+ * With a parallelism greater than one, the messages of the
+ * concurrent phases arrive from several threads at once,
+ * so implementations must be thread safe.
+ */
+public interface DiagnosticListener {
+
+    /**
+     * @param message the error or warning
+     * @param unit the unit being type checked when it was
+     *        added
+     * @param phase the phase running when it was added, or
+     *        null for a lex or parse error
+     */
+    void diagnostic(Message message, PhasedUnit unit, Phase phase);
+
+}
@@ -0,0 +1,77 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.redhat.ceylon.compiler.typechecker.analyzer.UnsupportedError;
+import com.redhat.ceylon.compiler.typechecker.analyzer.UsageWarning;
+import com.redhat.ceylon.compiler.typechecker.tree.Message;
+import com.redhat.ceylon.compiler.typechecker.tree.MessageListener;
+import com.redhat.ceylon.compiler.typechecker.tree.Node;
+
+/**
+ * Forwards the messages of the units run by a 
+ * {@link PhaseExecutor} to its diagnostic listeners, and
+ * counts the errors among them.
+ */
+final class DiagnosticReporter {
+
+    private final List<DiagnosticListener> listeners;
+    private final int errorLimit;
+    private final AtomicInteger errors = new AtomicInteger();
+
+    DiagnosticReporter(List<DiagnosticListener> listeners,
+            int errorLimit) {
+        this.listeners = new ArrayList<DiagnosticListener>(listeners);
+        this.errorLimit = errorLimit;
+    }
+
+    int getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Have so many errors been reported that no further
+     * phase should be run?
+     */
+    boolean isErrorLimitReached() {
+        return errorLimit>0 && errors.get()>=errorLimit;
+    }
+
+    void report(Message message, PhasedUnit unit, Phase phase) {
+        if (!(message instanceof UsageWarning) &&
+                !(message instanceof UnsupportedError)) {
+            errors.incrementAndGet();
+        }
+        for (int i=0,l=listeners.size();i<l;i++) {
+            listeners.get(i).diagnostic(message, unit, phase);
+        }
+    }
+
+    /**
+     * Report the lex and parse errors of the given unit.
+     */
+    void reportParseErrors(PhasedUnit unit) {
+        for (Message message: 
+                unit.getCompilationUnit().getErrors()) {
+            report(message, unit, null);
+        }
+    }
+
+    /**
+     * A listener reporting the messages added by the
+     * current thread while it runs the given phase of the
+     * given unit.
+     */
+    MessageListener listener(final PhasedUnit unit, 
+            final Phase phase) {
+        return new MessageListener() {
+            @Override
+            public void messageAdded(Node node, Message message) {
+                report(message, unit, phase);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
+
+/**
+ * The type checking phases that are run over every
+ * phased unit, in the order in which they must be
+ * executed. The deferrable phases always follow every
+ * other phase, and the concurrent phases always follow
+ * every sequential phase.
+ *
+ * @see PhaseExecutor
+ */
+public enum Phase {
+
+    /**
+     * Validates the tree and builds the declaration model.
+     * Declarations are added to packages shared with other
+     * units, and duplicate declarations are detected in the
+     * order in which units are scanned, so this phase is
+     * never run concurrently.
+     */
+    SCAN_DECLARATIONS(false, false) {
+        @Override
+        public void run(PhasedUnit pu) {
+            pu.validateTree();
+            pu.scanDeclarations();
+        }
+    },
+
+    /**
+     * Resolves types and supertypes. The supertype graph of
+     * declarations belonging to other units is inspected and
+     * repaired, so this phase is never run concurrently.
+     */
+    SCAN_TYPE_DECLARATIONS(false, false) {
+        @Override
+        public void run(PhasedUnit pu) {
+            pu.scanTypeDeclarations();
+        }
+    },
+
+    /**
+     * Validates member refinement. Like the previous phase,
+     * it may break circular supertypes of declarations of
+     * other units, so it is never run concurrently.
+     */
+    VALIDATE_REFINEMENT(false, false) {
+        @Override
+        public void run(PhasedUnit pu) {
+            pu.validateRefinement();
+        }
+    },
+
+    /**
+     * Assigns types to expressions and infers the types of
+     * declarations. The inferred types, and the types of
+     * shortcut refinements, are assigned to declarations
+     * which other units read, so this phase is never run
+     * concurrently.
+     */
+    ANALYSE_TYPES(true, false) {
+        @Override
+        public void run(PhasedUnit pu) {
+            pu.analyseTypes();
+        }
+        /**
+         * The inferred type of a toplevel declaration may be
+         * used by other units of the same package, so a unit
+         * which declares one must be fully typed before any
+         * other unit of the package is completed.
+         */
+        @Override
+        boolean mustRunFirst(PhasedUnit pu) {
+            for (Declaration d: pu.getUnit().getDeclarations()) {
+                if (d.isToplevel() &&
+                        d instanceof TypedDeclaration &&
+                        ((TypedDeclaration) d).getType()==null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    },
+
+    /**
+     * Checks definite assignment and control flow. Only
+     * reads the declarations of other units.
+     */
+    ANALYSE_FLOW(true, true) {
+        @Override
+        public void run(PhasedUnit pu) {
+            pu.analyseFlow();
+        }
+    },
+
+    /**
+     * Counts references and produces usage, deprecation
+     * and suppressed warnings. Only reads the declarations
+     * of other units.
+     */
+    ANALYSE_USAGE(true, true) {
+        @Override
+        public void run(PhasedUnit pu) {
+            pu.analyseUsage();
+        }
+    };
+
+    private final boolean deferrable;
+    private final boolean concurrent;
+
+    private Phase(boolean deferrable, boolean concurrent) {
+        this.deferrable = deferrable;
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Run this phase on the given unit. Phases are
+     * idempotent, so running a phase again on the same
+     * unit has no effect.
+     */
+    public abstract void run(PhasedUnit pu);
+
+    /**
+     * May this phase be left for later by a lazy type 
+     * checker, and run on a unit only when the unit is
+     * requested?
+     */
+    public boolean isDeferrable() {
+        return deferrable;
+    }
+
+    /**
+     * May this phase be run on several units at the same
+     * time, once every unit has completed every sequential
+     * phase?
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Must this phase be run on the given unit before it
+     * is run on another unit of the same package, when a
+     * lazy type checker completes units one at a time?
+     */
+    boolean mustRunFirst(PhasedUnit pu) {
+        return false;
+    }
+
+}
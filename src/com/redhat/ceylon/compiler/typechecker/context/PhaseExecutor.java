@@ -0,0 +1,327 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.tree.MessageListener;
+import com.redhat.ceylon.compiler.typechecker.tree.Node;
+
+/**
+ * Runs the type checking phases over a list of phased
+ * units. With a parallelism greater than one, the
+ * {@link Phase#isConcurrent() concurrent} phases are run
+ * on the units using a pool of worker threads. The time
+ * taken by each phase, unit, and visitor is reported to
+ * the {@link PhaseListener}, if any.
+ */
+public class PhaseExecutor {
+
+    private final int parallelism;
+    private final PhaseListener listener;
+    private DiagnosticReporter diagnosticReporter;
+    private ExecutorService executor;
+
+    public PhaseExecutor(int parallelism) {
+        this(parallelism, (PhaseListener) null);
+    }
+
+    /**
+     * @param listeners the listeners to notify of the time
+     *        taken by each phase, unit, and visitor
+     */
+    public PhaseExecutor(int parallelism, List<PhaseListener> listeners) {
+        this(parallelism, CompositePhaseListener.of(listeners));
+    }
+
+    public PhaseExecutor(int parallelism, PhaseListener listener) {
+        this.parallelism = parallelism;
+        this.listener = listener;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public PhaseListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Report the messages of the units to the given
+     * listeners as soon as they are added, and stop 
+     * running phases once the given number of errors has
+     * been reported.
+     *
+     * @param listeners the diagnostic listeners
+     * @param errorLimit the maximum number of errors, or
+     *        0 for no limit
+     */
+    public void setDiagnosticListeners(List<DiagnosticListener> listeners,
+            int errorLimit) {
+        diagnosticReporter = listeners.isEmpty() && errorLimit<=0 ?
+                null : new DiagnosticReporter(listeners, errorLimit);
+    }
+
+    /**
+     * Have the phases stopped because the error limit was
+     * reached?
+     */
+    public boolean isErrorLimitReached() {
+        return diagnosticReporter!=null &&
+                diagnosticReporter.isErrorLimitReached();
+    }
+
+    /**
+     * Run every phase, in order, over the given units.
+     * The sequential phases are each completed for every
+     * unit before the next one starts. Then each unit runs
+     * the concurrent phases on its own, one after the 
+     * other, without waiting for any other unit.
+     *
+     * @see PhaseScheduler
+     */
+    public void executePhases(List<PhasedUnit> units) {
+        List<Phase> concurrent = new ArrayList<Phase>();
+        for (Phase phase: Phase.values()) {
+            if (phase.isConcurrent()) {
+                concurrent.add(phase);
+            }
+            else {
+                execute(phase, units);
+            }
+        }
+        if (parallelism<=1 || units.size()<=1) {
+            for (Phase phase: concurrent) {
+                execute(phase, units);
+            }
+        }
+        else {
+            attach(units);
+            long start = System.nanoTime();
+            if (listener!=null) {
+                for (Phase phase: concurrent) {
+                    listener.phaseStarted(phase);
+                }
+            }
+            new PhaseScheduler(getExecutor(), concurrent, listener)
+                    .execute(units);
+            if (listener!=null) {
+                //the phases overlap, so each of them is
+                //reported with the time taken by all
+                long nanos = System.nanoTime()-start;
+                for (Phase phase: concurrent) {
+                    listener.phaseFinished(phase, nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run only the leading phases over the given units, 
+     * leaving the deferrable phases to be run later, one
+     * unit at a time, by {@link #complete}, and record 
+     * the dependencies of the units on the types their 
+     * declarations refer to.
+     */
+    public void executeLeadingPhases(List<PhasedUnit> units) {
+        for (Phase phase: Phase.values()) {
+            if (!phase.isDeferrable()) {
+                execute(phase, units);
+            }
+        }
+        for (PhasedUnit pu: units) {
+            pu.recordTypeDependencies();
+        }
+    }
+
+    /**
+     * Run the deferrable phases over the given unit, on the
+     * calling thread, once the leading phases have been
+     * run over every unit. Any unit of the same package
+     * which {@link Phase#mustRunFirst(PhasedUnit) must run
+     * a phase first} is brought up to that phase before it.
+     *
+     * @param pu the unit to complete
+     * @param units all the units
+     */
+    public void complete(PhasedUnit pu, List<PhasedUnit> units) {
+        for (Phase phase: Phase.values()) {
+            if (phase.isDeferrable()) {
+                for (PhasedUnit unit: units) {
+                    if (unit!=pu &&
+                            unit.getPackage()==pu.getPackage() &&
+                            phase.mustRunFirst(unit)) {
+                        unit.setPhaseListener(listener);
+                        unit.setDiagnosticReporter(diagnosticReporter);
+                        run(phase, unit, listener);
+                    }
+                }
+                pu.setPhaseListener(listener);
+                pu.setDiagnosticReporter(diagnosticReporter);
+                run(phase, pu, listener);
+            }
+        }
+    }
+
+    /**
+     * Run the given phase over the given units, returning
+     * when the phase is complete for every unit.
+     */
+    public void execute(Phase phase, List<PhasedUnit> units) {
+        attach(units);
+        long start = System.nanoTime();
+        if (listener!=null) {
+            listener.phaseStarted(phase);
+        }
+        if (parallelism<=1 || !phase.isConcurrent() ||
+                units.size()<=1) {
+            for (PhasedUnit pu: units) {
+                run(phase, pu, listener);
+            }
+        }
+        else {
+            runConcurrently(phase, units);
+        }
+        if (listener!=null) {
+            listener.phaseFinished(phase, System.nanoTime()-start);
+        }
+    }
+
+    private void attach(List<PhasedUnit> units) {
+        for (PhasedUnit pu: units) {
+            pu.setPhaseListener(listener);
+            pu.setDiagnosticReporter(diagnosticReporter);
+        }
+    }
+
+    /**
+     * Run the given phase on the given unit, reporting the
+     * time it takes to the given listener, if any, and the
+     * messages it adds to the diagnostic listeners of the
+     * unit, if any, unless the error limit has already been
+     * reached.
+     */
+    static void run(Phase phase, PhasedUnit pu, PhaseListener listener) {
+        DiagnosticReporter reporter = pu.getDiagnosticReporter();
+        if (reporter==null) {
+            time(phase, pu, listener);
+        }
+        else if (!reporter.isErrorLimitReached()) {
+            if (!pu.isTreeValidated()) {
+                reporter.reportParseErrors(pu);
+            }
+            MessageListener previous = 
+                    Node.setMessageListener(reporter.listener(pu, phase));
+            try {
+                time(phase, pu, listener);
+            }
+            finally {
+                Node.setMessageListener(previous);
+            }
+        }
+    }
+
+    private static void time(Phase phase, PhasedUnit pu, PhaseListener listener) {
+        if (listener==null) {
+            phase.run(pu);
+        }
+        else {
+            listener.unitStarted(phase, pu);
+            long allocated = ThreadAllocation.allocatedBytes();
+            long start = System.nanoTime();
+            try {
+                phase.run(pu);
+            }
+            finally {
+                listener.unitFinished(phase, pu, 
+                        System.nanoTime()-start,
+                        ThreadAllocation.allocatedSince(allocated));
+            }
+        }
+    }
+
+    private void runConcurrently(Phase phase, List<PhasedUnit> units) {
+        int depth = ProducedType.depth.get();
+        List<Callable<Integer>> tasks =
+                new ArrayList<Callable<Integer>>(units.size());
+        for (PhasedUnit pu: units) {
+            tasks.add(new PhaseTask(phase, pu, depth, listener));
+        }
+        try {
+            List<Future<Integer>> results =
+                    getExecutor().invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                try {
+                    depth = results.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException("Error while running phase " +
+                            phase + " for " + units.get(i), cause);
+                }
+            }
+            //leave the recursion depth as a sequential
+            //run of the phase would have left it
+            ProducedType.depth.set(depth);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running phase " +
+                    phase, e);
+        }
+    }
+
+    ExecutorService getExecutor() {
+        if (executor==null) {
+            executor = new ForkJoinPool(parallelism);
+        }
+        return executor;
+    }
+
+    /**
+     * Release the worker threads.
+     */
+    public void shutdown() {
+        if (executor!=null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static final class PhaseTask implements Callable<Integer> {
+        private final Phase phase;
+        private final PhasedUnit phasedUnit;
+        private final int depth;
+        private final PhaseListener listener;
+
+        PhaseTask(Phase phase, PhasedUnit phasedUnit, int depth,
+                PhaseListener listener) {
+            this.phase = phase;
+            this.phasedUnit = phasedUnit;
+            this.depth = depth;
+            this.listener = listener;
+        }
+
+        @Override
+        public Integer call() {
+            //the phases count recursion depth from
+            //whatever the previous phase left behind
+            ProducedType.depth.set(depth);
+            run(phase, phasedUnit, listener);
+            return ProducedType.depth.get();
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * Receives timing events as the type checking phases run.
+ * Every phase, every phase of every unit, and every
+ * visitor walked over a unit, produces a start event and
+ * an end event, the end event carrying the elapsed time
+ * in nanoseconds and the number of bytes allocated by the
+ * running thread, or -1 if the virtual machine cannot
+ * measure allocation.
+ *
+ * With a parallelism greater than one, the events of the
+ * concurrent phases arrive from several threads at once,
+ * so implementations must be thread safe. The events for
+ * a given unit and its visitors always arrive from the
+ * thread running that unit.
+ *
+ * @see PhaseStatistics
+ */
+public interface PhaseListener {
+
+    void phaseStarted(Phase phase);
+
+    /**
+     * @param nanos the elapsed time of the phase over all
+     *        units; for the concurrent phases, which are
+     *        scheduled together, the elapsed time of all of
+     *        them
+     */
+    void phaseFinished(Phase phase, long nanos);
+
+    void unitStarted(Phase phase, PhasedUnit unit);
+
+    void unitFinished(Phase phase, PhasedUnit unit,
+            long nanos, long allocatedBytes);
+
+    void visitorStarted(PhasedUnit unit,
+            Class<? extends Visitor> visitor);
+
+    void visitorFinished(PhasedUnit unit,
+            Class<? extends Visitor> visitor,
+            long nanos, long allocatedBytes);
+
+}
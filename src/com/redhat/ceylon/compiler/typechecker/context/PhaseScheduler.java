@@ -0,0 +1,120 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+
+/**
+ * Runs the {@link Phase#isConcurrent() concurrent} phases
+ * over a list of phased units without a barrier between
+ * phases. Each unit runs every phase, in order, as soon
+ * as a worker thread is free, so a slow unit does not
+ * hold back the other units.
+ *
+ * The scheduler does not track dependencies between
+ * units. The concurrent phases only read the declarations
+ * of other units, which every sequential phase has already
+ * completed, so no unit ever needs to wait for another.
+ * In particular, {@link Phase#ANALYSE_TYPES} is not
+ * scheduled here: it assigns inferred types, and the types
+ * of shortcut refinements, which other units read, and the
+ * units a unit depends upon are only known once its usage
+ * has been analysed, so it remains a sequential phase.
+ */
+class PhaseScheduler {
+
+    private final ExecutorService executor;
+    private final List<Phase> phases;
+    private final PhaseListener listener;
+
+    PhaseScheduler(ExecutorService executor, List<Phase> phases,
+            PhaseListener listener) {
+        this.executor = executor;
+        this.phases = phases;
+        this.listener = listener;
+    }
+
+    /**
+     * Run the phases over the given units, returning when
+     * every phase is complete for every unit.
+     */
+    void execute(List<PhasedUnit> units) {
+        if (units.isEmpty() || phases.isEmpty()) {
+            return;
+        }
+        int depth = ProducedType.depth.get();
+        CountDownLatch done = new CountDownLatch(units.size());
+        AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        List<Task> tasks = new ArrayList<Task>(units.size());
+        for (PhasedUnit pu: units) {
+            tasks.add(new Task(pu, depth, done, failure));
+        }
+        for (Task task: tasks) {
+            executor.execute(task);
+        }
+        try {
+            done.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running phases " +
+                    phases, e);
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause!=null) {
+            throw new RuntimeException("Error while running phases " +
+                    phases, cause);
+        }
+        //leave the recursion depth as a sequential
+        //run of the phases would have left it
+        ProducedType.depth.set(tasks.get(tasks.size()-1).depth);
+    }
+
+    private final class Task implements Runnable {
+        final PhasedUnit phasedUnit;
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure;
+        volatile int depth;
+
+        Task(PhasedUnit phasedUnit, int depth,
+                CountDownLatch done, AtomicReference<Throwable> failure) {
+            this.phasedUnit = phasedUnit;
+            this.depth = depth;
+            this.done = done;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (failure.get()==null) {
+                    //the phases count recursion depth from
+                    //whatever the previous phase left behind
+                    ProducedType.depth.set(depth);
+                    for (int i=0, size=phases.size(); i<size; i++) {
+                        PhaseExecutor.run(phases.get(i), phasedUnit, listener);
+                    }
+                    depth = ProducedType.depth.get();
+                }
+            }
+            catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+            finally {
+                done.countDown();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * A {@link PhaseListener} which totals the time spent and
+ * the bytes allocated in each phase, for each unit, and by
+ * each kind of visitor, and reports the slowest units and
+ * visitors.
+ */
+public class PhaseStatistics implements PhaseListener {
+
+    private final Map<Phase,Long> phases =
+            Collections.synchronizedMap(new EnumMap<Phase,Long>(Phase.class));
+    private final ConcurrentMap<String,Timing> units =
+            new ConcurrentHashMap<String,Timing>();
+    private final ConcurrentMap<String,Timing> visitors =
+            new ConcurrentHashMap<String,Timing>();
+
+    @Override
+    public void phaseStarted(Phase phase) {}
+
+    @Override
+    public void phaseFinished(Phase phase, long nanos) {
+        synchronized (phases) {
+            Long total = phases.get(phase);
+            phases.put(phase, total==null ? nanos : total+nanos);
+        }
+    }
+
+    @Override
+    public void unitStarted(Phase phase, PhasedUnit unit) {}
+
+    @Override
+    public void unitFinished(Phase phase, PhasedUnit unit,
+            long nanos, long allocatedBytes) {
+        timing(units, unit.getPathRelativeToSrcDir())
+                .add(nanos, allocatedBytes);
+    }
+
+    @Override
+    public void visitorStarted(PhasedUnit unit,
+            Class<? extends Visitor> visitor) {}
+
+    @Override
+    public void visitorFinished(PhasedUnit unit,
+            Class<? extends Visitor> visitor,
+            long nanos, long allocatedBytes) {
+        timing(visitors, visitor.getName())
+                .add(nanos, allocatedBytes);
+    }
+
+    private static Timing timing(ConcurrentMap<String,Timing> map,
+            String name) {
+        Timing timing = map.get(name);
+        if (timing==null) {
+            timing = new Timing(name);
+            Timing existing = map.putIfAbsent(name, timing);
+            if (existing!=null) {
+                timing = existing;
+            }
+        }
+        return timing;
+    }
+
+    /**
+     * The total elapsed time of the given phase, in
+     * nanoseconds.
+     */
+    public long getPhaseNanos(Phase phase) {
+        Long nanos = phases.get(phase);
+        return nanos==null ? 0 : nanos;
+    }
+
+    /**
+     * The units which took longest over every phase,
+     * slowest first.
+     */
+    public List<Timing> getSlowestUnits(int count) {
+        return slowest(units, count);
+    }
+
+    /**
+     * The kinds of visitor which took longest over every
+     * unit, slowest first.
+     */
+    public List<Timing> getSlowestVisitors(int count) {
+        return slowest(visitors, count);
+    }
+
+    private static List<Timing> slowest(Map<String,Timing> map,
+            int count) {
+        List<Timing> result = new ArrayList<Timing>(map.values());
+        Collections.sort(result, new Comparator<Timing>() {
+            @Override
+            public int compare(Timing x, Timing y) {
+                return Long.compare(y.getNanos(), x.getNanos());
+            }
+        });
+        return result.size()>count ?
+                new ArrayList<Timing>(result.subList(0, count)) : 
+                result;
+    }
+
+    /**
+     * Print the time spent in each phase and the given
+     * number of slowest units and visitors.
+     */
+    public void print(int count) {
+        for (Phase phase: Phase.values()) {
+            Long nanos = phases.get(phase);
+            if (nanos!=null) {
+                System.out.println(phase + " " + nanos/1000000 + " ms");
+            }
+        }
+        System.out.println("Slowest units:");
+        for (Timing timing: getSlowestUnits(count)) {
+            System.out.println("  " + timing);
+        }
+        System.out.println("Slowest visitors:");
+        for (Timing timing: getSlowestVisitors(count)) {
+            System.out.println("  " + timing);
+        }
+    }
+
+    /**
+     * The total time spent and bytes allocated by a unit
+     * or by a kind of visitor.
+     */
+    public static final class Timing {
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+
+        Timing(String name) {
+            this.name = name;
+        }
+
+        void add(long nanos, long allocatedBytes) {
+            this.count.incrementAndGet();
+            this.nanos.addAndGet(nanos);
+            if (allocatedBytes>0) {
+                this.allocatedBytes.addAndGet(allocatedBytes);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The number of events totalled.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getNanos() {
+            return nanos.get();
+        }
+
+        /**
+         * The bytes allocated, or zero if allocation could
+         * not be measured.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + getNanos()/1000000 + " ms, " + 
+                    getAllocatedBytes()/1024 + " KB (" + getCount() + ")";
+        }
+    }
+
+}
@@ -21,6 +21,7 @@ import com.redhat.ceylon.compiler.typechecker.analyzer.RefinementVisitor;
 import com.redhat.ceylon.compiler.typechecker.analyzer.SelfReferenceVisitor;
 import com.redhat.ceylon.compiler.typechecker.analyzer.SpecificationVisitor;
 import com.redhat.ceylon.compiler.typechecker.analyzer.SupertypeVisitor;
+import com.redhat.ceylon.compiler.typechecker.analyzer.ToplevelReferenceVisitor;
 import com.redhat.ceylon.compiler.typechecker.analyzer.TypeArgumentVisitor;
 import com.redhat.ceylon.compiler.typechecker.analyzer.TypeHierarchyVisitor;
 import com.redhat.ceylon.compiler.typechecker.analyzer.TypeVisitor;
@@ -34,6 +35,7 @@ import com.redhat.ceylon.compiler.typechecker.model.Package;
 import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
 import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
 import com.redhat.ceylon.compiler.typechecker.model.Unit;
+import com.redhat.ceylon.compiler.typechecker.tree.SourceMap;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree.ImportPath;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree.ModuleDescriptor;
@@ -78,6 +80,8 @@ public class PhasedUnit {
     private boolean literalsProcessed = false;
     private boolean moduleVisited = false;
     private EnumSet<Warning> suppressedWarnings = EnumSet.noneOf(Warning.class);
+    private PhaseListener phaseListener;
+    private DiagnosticReporter diagnosticReporter;
     public VirtualFile getSrcDir() {
         return srcDir;
     }
@@ -97,8 +101,7 @@ public class PhasedUnit {
         unit.setFullPath(unitFile.getPath());
         unit.setRelativePath(pathRelativeToSrcDir);
         unit.setPackage(pkg);
-        pkg.removeUnit(unit);
-        pkg.addUnit(unit);
+        pkg.replaceUnit(unit);
         cu.setUnit(unit);
     }
 
@@ -121,6 +124,8 @@ public class PhasedUnit {
         this.refinementValidated = other.refinementValidated;
         this.fullyTyped = other.fullyTyped;
         this.flowAnalyzed = other.flowAnalyzed;
+        this.phaseListener = other.phaseListener;
+        this.diagnosticReporter = other.diagnosticReporter;
     }
 
     @Deprecated
@@ -176,6 +181,10 @@ public class PhasedUnit {
         this.flowAnalyzed = flowAnalyzed;
     }
 
+    public boolean isUsageAnalyzed() {
+        return usageAnalyzed;
+    }
+
     public boolean isTreeValidated() {
         return treeValidated;
     }
@@ -237,8 +246,8 @@ public class PhasedUnit {
                     }
                 }
             }
-            compilationUnit.visit(new Validator());
-            compilationUnit.visit(new Visitor() {
+            visit(new Validator());
+            visit(new Visitor() {
                 @Override
                 public void visit(ModuleDescriptor that) {
                     super.visit(that);
@@ -282,11 +291,11 @@ public class PhasedUnit {
                 };
                 DeclarationVisitor dv = new DeclarationVisitor(pkg, fileName,
                         unitFile.getPath(), pathRelativeToSrcDir, unitFactory);
-                compilationUnit.visit(dv);
+                visit(dv);
                 unit = dv.getCompilationUnit();
 
                 LocalDeclarationVisitor ldv = new LocalDeclarationVisitor();
-                compilationUnit.visit(ldv);
+                visit(ldv);
 
                 declarationsScanned = true;
                 scanningDeclarations = false;
@@ -299,7 +308,7 @@ public class PhasedUnit {
 
 	private void processLiterals() {
 		if (!literalsProcessed) {
-			compilationUnit.visit(new LiteralVisitor());
+			visit(new LiteralVisitor());
 			literalsProcessed = true;
 		}
 	}
@@ -309,9 +318,9 @@ public class PhasedUnit {
         try {
             if (!typeDeclarationsScanned) {
                 //System.out.println("Scan type declarations for " + fileName);
-                compilationUnit.visit(new DefaultTypeArgVisitor());
-                compilationUnit.visit(new SupertypeVisitor(false)); //TODO: move to a new phase!
-                compilationUnit.visit(new TypeVisitor());
+                visit(new DefaultTypeArgVisitor());
+                visit(new SupertypeVisitor(false)); //TODO: move to a new phase!
+                visit(new TypeVisitor());
                 typeDeclarationsScanned = true;
             }
         }
@@ -326,10 +335,10 @@ public class PhasedUnit {
             if (!refinementValidated) {
                 ProducedType.depth.set(0);
                 //System.out.println("Validate member refinement for " + fileName);
-                compilationUnit.visit(new AliasVisitor());
-                compilationUnit.visit(new SupertypeVisitor(true)); //TODO: move to a new phase!
-                compilationUnit.visit(new InheritanceVisitor());
-                compilationUnit.visit(new RefinementVisitor());
+                visit(new AliasVisitor());
+                visit(new SupertypeVisitor(true)); //TODO: move to a new phase!
+                visit(new InheritanceVisitor());
+                visit(new RefinementVisitor());
                 refinementValidated = true;
             }
         }
@@ -342,26 +351,30 @@ public class PhasedUnit {
         if (!fullyTyped) {
             ProducedType.depth.set(-100);
             //System.out.println("Run analysis phase for " + fileName);
-            compilationUnit.visit(new ExpressionVisitor());
-            compilationUnit.visit(new VisibilityVisitor());
-            compilationUnit.visit(new AnnotationVisitor());
-            compilationUnit.visit(new TypeArgumentVisitor());
+            visit(new ExpressionVisitor());
+            visit(new VisibilityVisitor());
+            visit(new AnnotationVisitor());
+            visit(new TypeArgumentVisitor());
             fullyTyped = true;
         }
     }
     
     public synchronized void analyseFlow() {
         if (!flowAnalyzed) {
-            compilationUnit.visit(new TypeHierarchyVisitor());
+            visit(new TypeHierarchyVisitor());
             //System.out.println("Validate control flow for " + fileName);
-            compilationUnit.visit(new ControlFlowVisitor());
+            visit(new ControlFlowVisitor());
             //System.out.println("Validate self references for " + fileName);
             //System.out.println("Validate specification for " + fileName);
+            //walk only the toplevel declarations which 
+            //contain or refer to each declaration
+            ToplevelReferenceVisitor trv = new ToplevelReferenceVisitor();
+            visit(trv);
             for (Declaration d: unit.getDeclarations()) {
                 if (d.getName()!=null) {
-                    compilationUnit.visit(new SpecificationVisitor(d));
+                    visit(new SpecificationVisitor(d, trv.getToplevels(d)));
                     if (d instanceof TypeDeclaration) {
-                        compilationUnit.visit(new SelfReferenceVisitor((TypeDeclaration) d));
+                        visit(new SelfReferenceVisitor((TypeDeclaration) d, trv));
                     }
                 }
             }
@@ -372,14 +385,101 @@ public class PhasedUnit {
     public synchronized void analyseUsage() {
         if (! usageAnalyzed) {
             ReferenceCounter rc = new ReferenceCounter();
-            compilationUnit.visit(rc);
-            compilationUnit.visit(new UsageVisitor(rc));
-            compilationUnit.visit(new DeprecationVisitor());
-            compilationUnit.visit(new WarningSuppressionVisitor<Warning>(Warning.class, suppressedWarnings));
+            visit(rc);
+            recordDependencies(rc);
+            visit(new UsageVisitor(rc));
+            visit(new DeprecationVisitor());
+            visit(new WarningSuppressionVisitor<Warning>(Warning.class, suppressedWarnings));
             usageAnalyzed = true;
         }
     }
 
+    /**
+     * Register this unit as a dependent of the units 
+     * declaring the types its declarations refer to, once
+     * they have been resolved. A lazy type checker calls
+     * this, since the usage analysis, which registers the
+     * dependencies of the whole unit, may never run for 
+     * this unit.
+     */
+    public void recordTypeDependencies() {
+        ReferenceCounter rc = new ReferenceCounter();
+        visit(rc);
+        recordDependencies(rc);
+    }
+
+    /**
+     * Register this unit as a dependent of every other unit
+     * declaring something it references, so that it can be
+     * type checked again when one of those units changes.
+     * Called once the types of the declarations have been
+     * resolved, and again once every expression has been
+     * typed.
+     */
+    private void recordDependencies(ReferenceCounter rc) {
+        for (Declaration d: rc.getReferencedDeclarations()) {
+            Unit du = d.getUnit();
+            if (du!=null && du!=unit) {
+                du.getDependentsOf().add(pathRelativeToSrcDir);
+            }
+        }
+    }
+
+    /**
+     * Walk the tree with the given visitor of one of the
+     * phases, reporting the time it takes to the
+     * {@link #getPhaseListener() phase listener}.
+     */
+    private void visit(Visitor visitor) {
+        //any node the visitor creates refers to the
+        //tokens of this unit
+        SourceMap previous = 
+                SourceMap.setCurrent(compilationUnit.getSourceMap());
+        try {
+            PhaseListener listener = phaseListener;
+            if (listener==null) {
+                compilationUnit.visit(visitor);
+            }
+            else {
+                Class<? extends Visitor> type = visitor.getClass();
+                listener.visitorStarted(this, type);
+                long allocated = ThreadAllocation.allocatedBytes();
+                long start = System.nanoTime();
+                try {
+                    compilationUnit.visit(visitor);
+                }
+                finally {
+                    listener.visitorFinished(this, type, 
+                            System.nanoTime()-start,
+                            ThreadAllocation.allocatedSince(allocated));
+                }
+            }
+        }
+        finally {
+            SourceMap.setCurrent(previous);
+        }
+    }
+
+    public PhaseListener getPhaseListener() {
+        return phaseListener;
+    }
+
+    /**
+     * Report the time taken by each visitor of the phases
+     * to the given listener, or to nobody if it is null.
+     */
+    public void setPhaseListener(PhaseListener phaseListener) {
+        this.phaseListener = phaseListener;
+    }
+
+    DiagnosticReporter getDiagnosticReporter() {
+        return diagnosticReporter;
+    }
+
+    void setDiagnosticReporter(DiagnosticReporter diagnosticReporter) {
+        this.diagnosticReporter = diagnosticReporter;
+    }
+
     public void generateStatistics(StatisticsVisitor statsVisitor) {
         compilationUnit.visit(statsVisitor);
     }
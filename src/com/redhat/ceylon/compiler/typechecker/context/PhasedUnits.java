@@ -1,20 +1,33 @@
 package com.redhat.ceylon.compiler.typechecker.context;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import org.antlr.runtime.ANTLRInputStream;
 import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.CommonTokenStream;
 
 import com.redhat.ceylon.compiler.typechecker.analyzer.ModuleManager;
 import com.redhat.ceylon.compiler.typechecker.io.VirtualFile;
+import com.redhat.ceylon.compiler.typechecker.io.impl.FileSystemVirtualFile;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.redhat.ceylon.compiler.typechecker.model.Package;
 import com.redhat.ceylon.compiler.typechecker.parser.CeylonLexer;
 import com.redhat.ceylon.compiler.typechecker.parser.CeylonParser;
+import com.redhat.ceylon.compiler.typechecker.parser.CeylonScanner;
 import com.redhat.ceylon.compiler.typechecker.parser.LexError;
 import com.redhat.ceylon.compiler.typechecker.parser.ParseError;
+import com.redhat.ceylon.compiler.typechecker.parser.ParserProfile;
+import com.redhat.ceylon.compiler.typechecker.parser.SourceStream;
+import com.redhat.ceylon.compiler.typechecker.tree.SourceMap;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree;
 import com.redhat.ceylon.compiler.typechecker.util.ModuleManagerFactory;
 
@@ -28,6 +41,14 @@ public class PhasedUnits extends PhasedUnitMap<PhasedUnit, PhasedUnit> {
     private final ModuleManager moduleManager;
     private List<String> moduleFilters;
     private String encoding;
+    private int parallelism = 1;
+    private TreeCache treeCache;
+    private boolean leanMemory;
+    private ParserProfile parserProfile;
+    private boolean generatedLexer;
+    //non-null while the source tree is being walked
+    //in parallel parse mode
+    private List<ParseTask> pendingParses;
 
     public PhasedUnits(Context context) {
         this.context = context;
@@ -54,8 +75,22 @@ public class PhasedUnits extends PhasedUnitMap<PhasedUnit, PhasedUnit> {
     }
 
     public void parseUnits(List<VirtualFile> srcDirectories) {
-        for (VirtualFile file : srcDirectories) {
-            parseUnit(file, file);
+        if (isParallel()) {
+            pendingParses = new ArrayList<ParseTask>();
+            try {
+                for (VirtualFile file : srcDirectories) {
+                    walkUnit(file, file);
+                }
+                parsePending(pendingParses);
+            }
+            finally {
+                pendingParses = null;
+            }
+        }
+        else {
+            for (VirtualFile file : srcDirectories) {
+                parseUnit(file, file);
+            }
         }
     }
 
@@ -64,6 +99,65 @@ public class PhasedUnits extends PhasedUnitMap<PhasedUnit, PhasedUnit> {
     }
 
     public void parseUnit(VirtualFile file, VirtualFile srcDir) {
+        if (isParallel() && pendingParses == null) {
+            pendingParses = new ArrayList<ParseTask>();
+            try {
+                walkUnit(file, srcDir);
+                parsePending(pendingParses);
+            }
+            finally {
+                pendingParses = null;
+            }
+        }
+        else {
+            walkUnit(file, srcDir);
+        }
+    }
+
+    /**
+     * Parse the source files of the given phased units
+     * again, replacing each of them, and its unit in the
+     * package, with a freshly parsed phased unit which has
+     * not yet been through any type checking phase. The 
+     * new phased units and units keep the positions of the
+     * ones they replace, so that the units are visited in
+     * the same order as before.
+     *
+     * @return the new phased units, in the same order
+     */
+    public List<PhasedUnit> reparseUnits(List<PhasedUnit> phasedUnits) {
+        List<ParseTask> tasks = new ArrayList<ParseTask>(phasedUnits.size());
+        for (PhasedUnit pu: phasedUnits) {
+            tasks.add(new ParseTask(pu.getUnitFile(), pu.getSrcDir(),
+                    pu.getPackage()));
+        }
+        if (isParallel()) {
+            parsePending(tasks);
+        }
+        else {
+            for (ParseTask task: tasks) {
+                try {
+                    task.call();
+                }
+                catch (RuntimeException e) {
+                    //let it go
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new RuntimeException("Error while parsing the source file: " +
+                            task.file.toString(), e);
+                }
+                task.register();
+            }
+        }
+        List<PhasedUnit> result = new ArrayList<PhasedUnit>(tasks.size());
+        for (ParseTask task: tasks) {
+            result.add(getPhasedUnit(task.file));
+        }
+        return result;
+    }
+
+    private void walkUnit(VirtualFile file, VirtualFile srcDir) {
         try {
             if (file.isFolder()) {
                 //root directory is the src dir => start from here
@@ -88,33 +182,188 @@ public class PhasedUnits extends PhasedUnitMap<PhasedUnit, PhasedUnit> {
 
     protected void parseFile(VirtualFile file, VirtualFile srcDir) throws Exception {
         if (file.getName().endsWith(".ceylon")) {
+            ParseTask task = new ParseTask(file, srcDir, 
+                    moduleManager.getCurrentPackage());
+            task.call();
+            task.register();
+        }
+    }
+
+    /**
+     * Lex and parse the queued source files on a worker 
+     * pool, then register the resulting phased units on 
+     * the calling thread, in the order in which the files 
+     * were found, so that the ordering of the phased units
+     * and of the error messages is the same as for a 
+     * sequential parse.
+     */
+    private void parsePending(List<ParseTask> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = new ForkJoinPool(parallelism);
+        try {
+            List<Future<ParseTask>> results = executor.invokeAll(tasks);
+            for (int i=0; i<results.size(); i++) {
+                try {
+                    results.get(i).get().register();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException("Error while parsing the source file: " + 
+                            tasks.get(i).file.toString(), cause);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing the source files", e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
 
+    /**
+     * The lexing and parsing of a single source file, which 
+     * is independent of every other source file and may be 
+     * performed on any thread, followed by the registration
+     * of the resulting phased unit, which must happen on the
+     * thread which owns this PhasedUnits.
+     */
+    private final class ParseTask implements Callable<ParseTask> {
+        private final VirtualFile file;
+        private final VirtualFile srcDir;
+        private final Package pkg;
+        private Tree.CompilationUnit cu;
+        private List<CommonToken> tokens;
+        private List<LexError> lexerErrors;
+        private List<ParseError> parserErrors;
+        
+        ParseTask(VirtualFile file, VirtualFile srcDir, Package pkg) {
+            this.file = file;
+            this.srcDir = srcDir;
+            this.pkg = pkg;
+        }
+        
+        @Override
+        public ParseTask call() throws Exception {
+            if (treeCache==null) {
+                parse(SourceStream.decode(readSource(file), getEncoding()));
+            }
+            else {
+                byte[] content = readContent(file);
+                String key = treeCache.key(content, getEncoding(),
+                        generatedLexer ? 
+                                TreeCache.GENERATED_LEXER : 
+                                CeylonScanner.VERSION);
+                TreeCache.Entry entry = treeCache.load(key);
+                if (entry!=null) {
+                    cu = entry.getCompilationUnit();
+                    tokens = entry.getTokens();
+                    lexerErrors = new ArrayList<LexError>(0);
+                    parserErrors = new ArrayList<ParseError>(0);
+                }
+                else {
+                    parse(SourceStream.decode(ByteBuffer.wrap(content), 
+                            getEncoding()));
+                    if (lexerErrors.isEmpty() && parserErrors.isEmpty()) {
+                        treeCache.store(key, cu, tokens);
+                    }
+                }
+            }
+            if (leanMemory) {
+                SourceMap sourceMap = cu.getSourceMap();
+                if (sourceMap!=null) {
+                    sourceMap.freeze();
+                }
+                tokens = null;
+            }
+            return this;
+        }
+        
+        private void parse(SourceStream stream) throws Exception {
             //System.out.println("Parsing " + file.getName());
-            CeylonLexer lexer = new CeylonLexer(new ANTLRInputStream(file.getInputStream(), getEncoding()));
-            CommonTokenStream tokenStream = new CommonTokenStream(lexer);
-            CeylonParser parser = new CeylonParser(tokenStream);
-            Tree.CompilationUnit cu = parser.compilationUnit();
-            List<CommonToken> tokens = new ArrayList<CommonToken>(tokenStream.getTokens().size()); 
-            tokens.addAll(tokenStream.getTokens());
+            CeylonLexer lexer = null;
+            CeylonScanner scanner = null;
+            CommonTokenStream tokenStream;
+            if (generatedLexer) {
+                lexer = new CeylonLexer(stream);
+                tokenStream = new CommonTokenStream(lexer);
+            }
+            else {
+                scanner = new CeylonScanner(stream);
+                tokenStream = new CommonTokenStream(scanner);
+            }
+            CeylonParser parser = parserProfile==null ?
+                    new CeylonParser(tokenStream) :
+                    new CeylonParser(tokenStream, parserProfile, 
+                            file.getPath());
+            //the tokens the lexer fills in while parsing,
+            //shared with the source map of the tree
+            @SuppressWarnings("unchecked")
+            List<CommonToken> streamTokens = tokenStream.getTokens();
+            SourceMap previous = SourceMap.setCurrent(
+                    new SourceMap(streamTokens));
+            try {
+                cu = parser.compilationUnit();
+            }
+            finally {
+                SourceMap.setCurrent(previous);
+            }
+            if (streamTokens instanceof ArrayList) {
+                ((ArrayList<CommonToken>) streamTokens).trimToSize();
+            }
+            tokens = streamTokens;
+            lexerErrors = lexer==null ? 
+                    scanner.getErrors() : lexer.getErrors();
+            parserErrors = parser.getErrors();
+        }
+        
+        void register() {
             PhasedUnit phasedUnit = new PhasedUnit(file, srcDir, cu, 
-                    moduleManager.getCurrentPackage(), moduleManager,
-                    context, tokens);
+                    pkg, moduleManager, context, tokens);
             addPhasedUnit(file, phasedUnit);
 
-            List<LexError> lexerErrors = lexer.getErrors();
             for (LexError le : lexerErrors) {
                 //System.out.println("Lexer error in " + file.getName() + ": " + le.getMessage());
                 cu.addLexError(le);
             }
             lexerErrors.clear();
 
-            List<ParseError> parserErrors = parser.getErrors();
             for (ParseError pe : parserErrors) {
                 //System.out.println("Parser error in " + file.getName() + ": " + pe.getMessage());
                 cu.addParseError(pe);
             }
             parserErrors.clear();
+        }
+    }
+
+    private static ByteBuffer readSource(VirtualFile file) throws IOException {
+        if (file instanceof FileSystemVirtualFile) {
+            return ((FileSystemVirtualFile) file).getContent();
+        }
+        else {
+            return ByteBuffer.wrap(readContent(file));
+        }
+    }
 
+    private static byte[] readContent(VirtualFile file) throws IOException {
+        InputStream stream = file.getInputStream();
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer))>0) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        }
+        finally {
+            stream.close();
         }
     }
 
@@ -126,6 +375,13 @@ public class PhasedUnits extends PhasedUnitMap<PhasedUnit, PhasedUnit> {
         if (file.isFolder()) {
             processDirectory(file, srcDir);
         }
+        else if (pendingParses != null && 
+                file.getName().endsWith(".ceylon")) {
+            //remember the package now, since it depends on
+            //the current position in the directory walk
+            pendingParses.add(new ParseTask(file, srcDir, 
+                    moduleManager.getCurrentPackage()));
+        }
         else {
             parseFile(file, srcDir);
         }
@@ -222,6 +478,104 @@ public class PhasedUnits extends PhasedUnitMap<PhasedUnit, PhasedUnit> {
         this.encoding = encoding;
     }
 
+    /**
+     * The number of threads used to lex and parse source 
+     * files. When greater than one, the source directories
+     * are walked first, and then the files found are parsed
+     * concurrently. A subclass which overrides
+     * {@link #parseFile(VirtualFile, VirtualFile)} always
+     * has its source files parsed sequentially, each by a
+     * call to that method.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * An optional cache of parsed units, consulted before
+     * lexing and parsing each source file. 
+     */
+    public void setTreeCache(TreeCache treeCache) {
+        this.treeCache = treeCache;
+    }
+
+    public TreeCache getTreeCache() {
+        return treeCache;
+    }
+
+    /**
+     * Drop the token list of each unit once it is parsed,
+     * and {@link SourceMap#freeze() freeze} the source map
+     * of its tree, to reduce the memory retained by the
+     * units.
+     * {@link PhasedUnit#getTokens()} then returns null,
+     * but the locations and offsets of the nodes are
+     * unaffected.
+     */
+    public void setLeanMemory(boolean leanMemory) {
+        this.leanMemory = leanMemory;
+    }
+
+    public boolean isLeanMemory() {
+        return leanMemory;
+    }
+
+    /**
+     * An optional profile into which the parser of each
+     * source file records the behavior of the rules and
+     * decisions of the grammar. Units loaded from the
+     * tree cache are not parsed, and not profiled.
+     */
+    public void setParserProfile(ParserProfile parserProfile) {
+        this.parserProfile = parserProfile;
+    }
+
+    public ParserProfile getParserProfile() {
+        return parserProfile;
+    }
+
+    /**
+     * Lex with the {@link CeylonLexer} generated from the
+     * grammar, instead of the hand written, and faster,
+     * {@link CeylonScanner}, which produces the same 
+     * tokens.
+     */
+    public void setGeneratedLexer(boolean generatedLexer) {
+        this.generatedLexer = generatedLexer;
+    }
+
+    public boolean isGeneratedLexer() {
+        return generatedLexer;
+    }
+
+    private boolean isParallel() {
+        return parallelism > 1 && !overridesParseFile();
+    }
+
+    /**
+     * Does the class of this object override 
+     * {@link #parseFile(VirtualFile, VirtualFile)}, which 
+     * the parallel parse would bypass?
+     */
+    private boolean overridesParseFile() {
+        for (Class<?> c = getClass(); c != PhasedUnits.class; 
+                c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("parseFile", 
+                        VirtualFile.class, VirtualFile.class);
+                return true;
+            }
+            catch (NoSuchMethodException e) {
+                //not declared by this class
+            }
+        }
+        return false;
+    }
+
     @Override
     protected PhasedUnit toStoredType(PhasedUnit phasedUnit) {
         return phasedUnit;
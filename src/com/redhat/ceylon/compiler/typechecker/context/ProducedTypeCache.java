@@ -1,108 +1,660 @@
 package com.redhat.ceylon.compiler.typechecker.context;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedTypeInterner;
+import com.redhat.ceylon.compiler.typechecker.model.IntersectionType;
 import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
-import com.redhat.ceylon.compiler.typechecker.model.UnknownType;
+import com.redhat.ceylon.compiler.typechecker.model.UnionType;
 
+/**
+ * The supertypes and subtype relations computed for the
+ * types of a module, held in a single table of bounded
+ * size. When the table is full, an entry which has not
+ * been used since the clock hand last passed over it is
+ * evicted.
+ * 
+ * Every entry is indexed by the declarations of the types
+ * it was computed for, which are the roots of the entry.
+ * When a declaration changes, only the entries with a root
+ * whose supertypes, case types, or type arguments, directly
+ * or transitively, involve the declaration are cleared.
+ */
 public class ProducedTypeCache {
-    
+
     private static boolean cachingEnabledByDefault = true;
-    
+
     public static void setEnabledByDefault(boolean enabled) {
         cachingEnabledByDefault = enabled;
     }
-    
-    private static final ThreadLocal<Boolean> cachingEnabled = 
+
+    private static final ThreadLocal<Boolean> cachingEnabled =
             new ThreadLocal<Boolean>();
-    
+    // the number of threads which override the default,
+    // so that the thread local is only read when needed
+    private static final AtomicInteger overrides =
+            new AtomicInteger();
+
     public static Boolean setEnabled(Boolean enabled) {
         Boolean was = isEnabled();
-        cachingEnabled.set(enabled);
+        Boolean override = cachingEnabled.get();
+        if (enabled == null ||
+                enabled.booleanValue() == cachingEnabledByDefault) {
+            if (override != null) {
+                cachingEnabled.remove();
+                overrides.decrementAndGet();
+            }
+        }
+        else {
+            if (override == null) {
+                overrides.incrementAndGet();
+            }
+            cachingEnabled.set(enabled);
+        }
         return was;
     }
-    
+
     public static boolean isEnabled() {
+        if (overrides.get() == 0) {
+            return cachingEnabledByDefault;
+        }
         Boolean cie = cachingEnabled.get();
         return cie == null ? cachingEnabledByDefault : cie;
     }
+
+    /**
+     * Computes the supertype of a type, when it is not
+     * found in the cache.
+     */
+    public interface SupertypeFunction {
+        ProducedType getSupertype(ProducedType type,
+                TypeDeclaration dec);
+    }
+
+    /**
+     * Computes the subtype relation between two types,
+     * when it is not found in the cache.
+     */
+    public interface SubtypeFunction {
+        boolean isSubtype(ProducedType subtype,
+                ProducedType supertype);
+    }
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    // a rough estimate of the memory held by an entry,
+    // not counting the types, which are shared with the
+    // model: the entry, its key, and its node and slot
+    // in the table and in the clock, and the set of roots
+    private static final int ENTRY_SIZE = 160;
+    // and by each root of an entry, in the set of roots
+    // and in the index
+    private static final int ROOT_SIZE = 64;
+
+    private static final class SupertypeKey {
+        private final ProducedType type;
+        private final TypeDeclaration dec;
+        private final int hashCode;
+        private SupertypeKey(ProducedType type, TypeDeclaration dec) {
+            this.type = type;
+            this.dec = dec;
+            hashCode = 37 * type.hashCode() + dec.hashCode();
+        }
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof SupertypeKey)) {
+                return false;
+            }
+            SupertypeKey other = (SupertypeKey) obj;
+            return hashCode == other.hashCode &&
+                    dec.equals(other.dec) &&
+                    type.equals(other.type);
+        }
+    }
+
+    private static final class SubtypeKey {
+        private final ProducedType subtype;
+        private final ProducedType supertype;
+        private final int hashCode;
+        private SubtypeKey(ProducedType subtype, ProducedType supertype) {
+            this.subtype = subtype;
+            this.supertype = supertype;
+            hashCode = 37 * subtype.hashCode() + supertype.hashCode();
+        }
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof SubtypeKey)) {
+                return false;
+            }
+            SubtypeKey other = (SubtypeKey) obj;
+            return hashCode == other.hashCode &&
+                    subtype.equals(other.subtype) &&
+                    supertype.equals(other.supertype);
+        }
+    }
+
+    private static final class Entry {
+        private final Object key;
+        // a ProducedType, a Boolean, or null for a type
+        // with no such supertype
+        private final Object value;
+        private final Set<TypeDeclaration> roots;
+        private volatile boolean referenced;
+        private volatile boolean removed;
+        private Entry(Object key, Object value, 
+                Set<TypeDeclaration> roots) {
+            this.key = key;
+            this.value = value;
+            this.roots = roots;
+        }
+    }
+
+    private final ProducedTypeInterner interner;
+    private final int capacity;
+
+    private final ConcurrentMap<Object, Entry> entries =
+            new ConcurrentHashMap<Object, Entry>();
+    // the clock, grown up to the capacity, and guarded
+    // by this cache
+    private final List<Entry> clock = new ArrayList<Entry>();
+    private int hand;
+    // the entries of each root, the declarations each
+    // root involved when its first entry was inserted, 
+    // the roots which involve each declaration, and the
+    // involved declarations by name, all guarded by this
+    // cache
+    private final Map<TypeDeclaration, Set<Entry>> index = 
+            new IdentityHashMap<TypeDeclaration, Set<Entry>>();
+    private final Map<TypeDeclaration, Set<TypeDeclaration>> involved = 
+            new IdentityHashMap<TypeDeclaration, Set<TypeDeclaration>>();
+    private final Map<TypeDeclaration, Set<TypeDeclaration>> dependents = 
+            new IdentityHashMap<TypeDeclaration, Set<TypeDeclaration>>();
+    private final Map<String, Set<TypeDeclaration>> named = 
+            new HashMap<String, Set<TypeDeclaration>>();
+    private int indexed;
     
-    // need a special value for null because ConcurrentHashMap does not support null
-    private final static ProducedType NULL_VALUE = new UnknownType(null).getType();
-    // need ConcurrentHashMap even for the cache, otherwise get/put/containsKey can get info infinite loops
-    // on concurrent operations
-    private final Map<ProducedType, Map<TypeDeclaration, ProducedType>> superTypes = 
-            new ConcurrentHashMap<ProducedType, Map<TypeDeclaration, ProducedType>>();
+    // declarations are indexed by identity, since their
+    // equals() and hashCode() are much more expensive, and
+    // may fail for an incomplete model
+    private static Set<TypeDeclaration> newDeclarationSet() {
+        return Collections.newSetFromMap(
+                new IdentityHashMap<TypeDeclaration, Boolean>());
+    }
     
-    public boolean containsKey(ProducedType producedType, TypeDeclaration dec) {
-        Map<TypeDeclaration, ProducedType> cache = superTypes.get(producedType);
-        if (cache == null) {
-            return false;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    public ProducedTypeCache() {
+        this(null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param interner interns the types held by the cache,
+     *        or null if they are not interned
+     * @param capacity the maximum number of entries
+     */
+    public ProducedTypeCache(ProducedTypeInterner interner,
+            int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
         }
-        return cache.containsKey(dec);
+        this.interner = interner;
+        this.capacity = capacity;
     }
 
-    public ProducedType get(ProducedType producedType, TypeDeclaration dec) {
-        Map<TypeDeclaration, ProducedType> cache = superTypes.get(producedType);
-        if (cache == null) {
-            return null;
+    private ProducedType intern(ProducedType type) {
+        return interner == null ? type : interner.intern(type);
+    }
+
+    private Entry lookup(Object key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+        }
+        else {
+            entry.referenced = true;
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * The supertype of the given type for the given
+     * declaration, computed by the given function if it is
+     * not already cached.
+     */
+    public ProducedType getSupertype(ProducedType type,
+            TypeDeclaration dec, SupertypeFunction function) {
+        Entry entry = lookup(new SupertypeKey(type, dec));
+        if (entry != null) {
+            return (ProducedType) entry.value;
         }
-        ProducedType ret = cache.get(dec);
-        return ret == NULL_VALUE ? null : ret;
+        ProducedType superType =
+                intern(function.getSupertype(type, dec));
+        Set<TypeDeclaration> roots = newDeclarationSet();
+        addRoots(roots, type);
+        roots.add(dec);
+        addRoots(roots, superType);
+        insert(new SupertypeKey(intern(type), dec), superType, roots);
+        return superType;
+    }
+
+    /**
+     * Is the first given type a subtype of the second,
+     * as computed by the given function if the relation
+     * is not already cached?
+     */
+    public boolean isSubtype(ProducedType subtype,
+            ProducedType supertype, SubtypeFunction function) {
+        Entry entry = lookup(new SubtypeKey(subtype, supertype));
+        if (entry != null) {
+            return (Boolean) entry.value;
+        }
+        boolean result = function.isSubtype(subtype, supertype);
+        Set<TypeDeclaration> roots = newDeclarationSet();
+        addRoots(roots, subtype);
+        addRoots(roots, supertype);
+        insert(new SubtypeKey(intern(subtype), intern(supertype)),
+                result, roots);
+        return result;
+    }
+
+    public boolean containsKey(ProducedType producedType, TypeDeclaration dec) {
+        return entries.containsKey(new SupertypeKey(producedType, dec));
+    }
+
+    public ProducedType get(ProducedType producedType, TypeDeclaration dec) {
+        Entry entry = lookup(new SupertypeKey(producedType, dec));
+        return entry == null ? null : (ProducedType) entry.value;
     }
 
     public void put(ProducedType producedType, TypeDeclaration dec, ProducedType superType) {
-        Map<TypeDeclaration, ProducedType> cache = superTypes.get(producedType);
-        if (cache == null) {
-            // need ConcurrentHashMap even for the cache, otherwise get/put/containsKey can get info infinite loops
-            // on concurrent operations
-            cache = new ConcurrentHashMap<TypeDeclaration, ProducedType>();
-            superTypes.put(producedType, cache);
+        Set<TypeDeclaration> roots = newDeclarationSet();
+        addRoots(roots, producedType);
+        roots.add(dec);
+        addRoots(roots, superType);
+        insert(new SupertypeKey(intern(producedType), dec),
+                intern(superType), roots);
+    }
+
+    /**
+     * Add the declarations of the given type, of its 
+     * qualifying type, and of its type arguments, to the
+     * given roots. Union and intersection types are not
+     * roots, but their cases are.
+     */
+    private static void addRoots(Set<TypeDeclaration> roots, 
+            ProducedType type) {
+        if (type == null) {
+            return;
+        }
+        TypeDeclaration d = type.getDeclaration();
+        if (d instanceof UnionType) {
+            addRoots(roots, d.getCaseTypes());
         }
-        if (superType == null) {
-            superType = NULL_VALUE;
+        else if (d instanceof IntersectionType) {
+            addRoots(roots, d.getSatisfiedTypes());
         }
-        cache.put(dec, superType);
+        else if (d != null) {
+            roots.add(d);
+        }
+        addRoots(roots, type.getQualifyingType());
+        addRoots(roots, type.getTypeArgumentList());
     }
 
-    public void clear(){
-        superTypes.clear();
+    private static void addRoots(Set<TypeDeclaration> roots, 
+            List<ProducedType> types) {
+        if (types != null) {
+            for (int i=0,l=types.size();i<l;i++) {
+                addRoots(roots, types.get(i));
+            }
+        }
     }
 
-    public void clearForDeclaration(TypeDeclaration decl) {
-        // clear the whole cache for now, unless I can figure out exactly what to
-        // clear
-        clear();
+    /**
+     * Add the given declaration, and the declarations its
+     * extended, satisfied, and case types involve, to the
+     * given set.
+     */
+    private static void addInvolved(Set<TypeDeclaration> involved, 
+            TypeDeclaration d) {
+        if (d == null || !involved.add(d)) {
+            return;
+        }
+        addInvolved(involved, d.getExtendedType());
+        addInvolved(involved, d.getSatisfiedTypes());
+        addInvolved(involved, d.getCaseTypes());
     }
-    
-    public void clearNullValues() {
-        List<ProducedType> cachesToremove = new LinkedList<ProducedType>();
-        for (Map.Entry<ProducedType, Map<TypeDeclaration, ProducedType>> entry: 
-                superTypes.entrySet()) {
-            Map<TypeDeclaration, ProducedType> cache = entry.getValue();
-            if (cache == null) {
-                cachesToremove.add(entry.getKey());
+
+    private static void addInvolved(Set<TypeDeclaration> involved, 
+            ProducedType type) {
+        if (type == null) {
+            return;
+        }
+        TypeDeclaration d = type.getDeclaration();
+        if (d instanceof UnionType) {
+            addInvolved(involved, d.getCaseTypes());
+        }
+        else if (d instanceof IntersectionType) {
+            addInvolved(involved, d.getSatisfiedTypes());
+        }
+        else {
+            addInvolved(involved, d);
+        }
+        addInvolved(involved, type.getQualifyingType());
+        addInvolved(involved, type.getTypeArgumentList());
+    }
+
+    private static void addInvolved(Set<TypeDeclaration> involved, 
+            List<ProducedType> types) {
+        if (types != null) {
+            for (int i=0,l=types.size();i<l;i++) {
+                addInvolved(involved, types.get(i));
             }
-            else {
-                List<TypeDeclaration> valuesToremove = 
-                        new LinkedList<TypeDeclaration>();
-                for (Map.Entry<TypeDeclaration, ProducedType> cacheEntry: 
-                        cache.entrySet()) {
-                    if (cacheEntry.getValue() == NULL_VALUE) {
-                        valuesToremove.add(cacheEntry.getKey());
+        }
+    }
+
+    /**
+     * Index the given entry by its roots, which are all
+     * roots already indexed or roots whose involved
+     * declarations are given.
+     */
+    private void index(Entry entry, 
+            Map<TypeDeclaration, Set<TypeDeclaration>> computed) {
+        for (TypeDeclaration root: entry.roots) {
+            Set<Entry> rootEntries = index.get(root);
+            if (rootEntries == null) {
+                rootEntries = new HashSet<Entry>();
+                index.put(root, rootEntries);
+                Set<TypeDeclaration> declarations = 
+                        computed.get(root);
+                involved.put(root, declarations);
+                for (TypeDeclaration d: declarations) {
+                    Set<TypeDeclaration> roots = dependents.get(d);
+                    if (roots == null) {
+                        roots = newDeclarationSet();
+                        dependents.put(d, roots);
+                        String name = d.getName();
+                        Set<TypeDeclaration> sameName = 
+                                named.get(name);
+                        if (sameName == null) {
+                            sameName = newDeclarationSet();
+                            named.put(name, sameName);
+                        }
+                        sameName.add(d);
+                    }
+                    roots.add(root);
+                }
+            }
+            rootEntries.add(entry);
+        }
+        indexed += entry.roots.size();
+    }
+
+    private void unindex(Entry entry) {
+        for (TypeDeclaration root: entry.roots) {
+            Set<Entry> rootEntries = index.get(root);
+            if (rootEntries != null) {
+                rootEntries.remove(entry);
+                if (rootEntries.isEmpty()) {
+                    forget(root);
+                }
+            }
+        }
+        indexed -= entry.roots.size();
+    }
+
+    /**
+     * Remove the given root, which has no entries left, 
+     * from the index.
+     */
+    private void forget(TypeDeclaration root) {
+        index.remove(root);
+        Set<TypeDeclaration> declarations = involved.remove(root);
+        if (declarations != null) {
+            for (TypeDeclaration d: declarations) {
+                Set<TypeDeclaration> roots = dependents.get(d);
+                if (roots != null) {
+                    roots.remove(root);
+                    if (roots.isEmpty()) {
+                        dependents.remove(d);
+                        Set<TypeDeclaration> sameName = 
+                                named.get(d.getName());
+                        if (sameName != null) {
+                            sameName.remove(d);
+                            if (sameName.isEmpty()) {
+                                named.remove(d.getName());
+                            }
+                        }
                     }
                 }
-                for (TypeDeclaration toRemove: valuesToremove) {
-                    cache.remove(toRemove);
+            }
+        }
+    }
+
+    /**
+     * Insert an entry, first computing the declarations
+     * involved by any of its roots which are not yet
+     * indexed, outside the lock, since that walks the 
+     * supertypes of the roots.
+     */
+    private void insert(Object key, Object value, 
+            Set<TypeDeclaration> roots) {
+        Entry entry = new Entry(key, value, roots);
+        Map<TypeDeclaration, Set<TypeDeclaration>> computed = 
+                Collections.emptyMap();
+        while (true) {
+            List<TypeDeclaration> unindexed = 
+                    insert(entry, computed);
+            if (unindexed == null) {
+                return;
+            }
+            if (computed.isEmpty()) {
+                computed = new IdentityHashMap<TypeDeclaration, Set<TypeDeclaration>>();
+            }
+            for (TypeDeclaration root: unindexed) {
+                Set<TypeDeclaration> declarations = 
+                        newDeclarationSet();
+                addInvolved(declarations, root);
+                computed.put(root, declarations);
+            }
+        }
+    }
+
+    /**
+     * Insert the given entry, unless a root of the entry
+     * is neither indexed nor among the given computed 
+     * roots.
+     * 
+     * @return null if the entry was inserted, or else the
+     *         roots whose involved declarations must be
+     *         computed first
+     */
+    private synchronized List<TypeDeclaration> insert(Entry entry,
+            Map<TypeDeclaration, Set<TypeDeclaration>> computed) {
+        List<TypeDeclaration> unindexed = null;
+        for (TypeDeclaration root: entry.roots) {
+            if (!index.containsKey(root) && 
+                    !computed.containsKey(root)) {
+                if (unindexed == null) {
+                    unindexed = new ArrayList<TypeDeclaration>();
+                }
+                unindexed.add(root);
+            }
+        }
+        if (unindexed != null) {
+            return unindexed;
+        }
+        Object key = entry.key;
+        Entry existing = entries.put(key, entry);
+        if (existing != null) {
+            // another thread got there first
+            existing.removed = true;
+            unindex(existing);
+        }
+        index(entry, computed);
+        if (clock.size() < capacity) {
+            clock.add(entry);
+            return null;
+        }
+        // advance the hand to the first entry which has
+        // been removed, or not been used since the hand
+        // last passed over it
+        while (true) {
+            Entry candidate = clock.get(hand);
+            if (candidate.removed) {
+                break;
+            }
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                hand = (hand + 1) % capacity;
+            }
+            else {
+                entries.remove(candidate.key, candidate);
+                candidate.removed = true;
+                unindex(candidate);
+                evictions.increment();
+                break;
+            }
+        }
+        clock.set(hand, entry);
+        hand = (hand + 1) % capacity;
+        return null;
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            entry.removed = true;
+            unindex(entry);
+        }
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+        clock.clear();
+        hand = 0;
+        index.clear();
+        involved.clear();
+        dependents.clear();
+        named.clear();
+        indexed = 0;
+    }
+
+    /**
+     * Clear the entries which may depend on the given 
+     * declaration, that is, the entries with a root which
+     * involved the declaration.
+     * 
+     * @return the roots whose entries were cleared
+     */
+    public synchronized Set<TypeDeclaration> clearForDeclaration(TypeDeclaration decl) {
+        Set<TypeDeclaration> affected = newDeclarationSet();
+        Set<TypeDeclaration> declarations = named.get(decl.getName());
+        if (declarations != null) {
+            for (TypeDeclaration d: declarations) {
+                // the declaration may be another instance of
+                // an indexed declaration, for example, one 
+                // created when its unit was parsed again
+                if (d == decl || d.equals(decl)) {
+                    affected.addAll(dependents.get(d));
+                }
+            }
+        }
+        for (TypeDeclaration root: affected) {
+            Set<Entry> rootEntries = index.get(root);
+            if (rootEntries != null) {
+                for (Entry entry: new ArrayList<Entry>(rootEntries)) {
+                    remove(entry);
                 }
             }
         }
-        for (ProducedType toRemove: cachesToremove) {
-            superTypes.remove(toRemove);
+        return affected;
+    }
+
+    public void clearNullValues() {
+        for (Entry entry: entries.values()) {
+            if (entry.value == null) {
+                remove(entry);
+            }
         }
     }
+
+    /**
+     * The number of lookups which found an entry.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of lookups which found no entry.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of entries evicted to make room for
+     * another.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * The number of entries currently held.
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * A rough estimate, in bytes, of the memory held by
+     * the cache itself, not counting the types, which are
+     * shared with the model.
+     */
+    public synchronized long getEstimatedMemory() {
+        return (long) getSize() * ENTRY_SIZE + 
+                (long) indexed * ROOT_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "ProducedTypeCache[size=" + getSize() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", memory=" + getEstimatedMemory() + "]";
+    }
 }
@@ -0,0 +1,45 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter incremented by many threads at once. Each
+ * thread increments one of several cells, each on its own
+ * cache line, so that the threads do not all contend for
+ * the same one, and the count is the sum of the cells.
+ */
+final class StripedCounter {
+
+    // the longs between two cells, so that no two cells
+    // share a cache line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors * 2) {
+            stripes <<= 1;
+        }
+        mask = stripes - 1;
+        cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    void increment() {
+        // thread ids are allocated in sequence, so threads
+        // alive at the same time usually get distinct cells
+        int stripe = (int) Thread.currentThread().getId() & mask;
+        cells.incrementAndGet(stripe * PADDING);
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i=0,l=cells.length();i<l;i+=PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated by the current thread,
+ * where the virtual machine supports it.
+ */
+final class ThreadAllocation {
+
+    private static final com.sun.management.ThreadMXBean bean = findBean();
+
+    private ThreadAllocation() {}
+
+    private static com.sun.management.ThreadMXBean findBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunBean =
+                        (com.sun.management.ThreadMXBean) bean;
+                if (sunBean.isThreadAllocatedMemorySupported()) {
+                    if (!sunBean.isThreadAllocatedMemoryEnabled()) {
+                        sunBean.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    return sunBean;
+                }
+            }
+        }
+        catch (LinkageError | RuntimeException e) {
+            //not a HotSpot VM
+        }
+        return null;
+    }
+
+    /**
+     * The total bytes allocated so far by the current
+     * thread, or -1 if it cannot be measured.
+     */
+    static long allocatedBytes() {
+        if (bean==null) {
+            return -1;
+        }
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The bytes allocated since the given total returned by
+     * {@link #allocatedBytes()}, or -1 if unknown.
+     */
+    static long allocatedSince(long allocatedBytes) {
+        if (allocatedBytes<0) {
+            return -1;
+        }
+        long now = allocatedBytes();
+        return now<0 ? -1 : now-allocatedBytes;
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.redhat.ceylon.compiler.typechecker.context;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.antlr.runtime.CommonToken;
+
+import com.redhat.ceylon.compiler.typechecker.parser.CeylonLexer;
+import com.redhat.ceylon.compiler.typechecker.parser.CeylonScanner;
+import com.redhat.ceylon.compiler.typechecker.tree.NodeInput;
+import com.redhat.ceylon.compiler.typechecker.tree.NodeOutput;
+import com.redhat.ceylon.compiler.typechecker.tree.Serializer;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+
+/**
+ * An on-disk cache of parsed compilation units, and of
+ * their token streams, in a directory of files named by
+ * a hash of the source file contents, of the source file
+ * encoding, of the {@link #FORMAT_VERSION format version},
+ * of the {@link Serializer#GRAMMAR_VERSION grammar version},
+ * and of the version of the lexer, for example
+ * {@link CeylonScanner#VERSION}.
+ * Only units which were lexed and parsed
+ * without errors are ever stored. Any problem reading or
+ * writing the cache is treated as a cache miss.
+ */
+public class TreeCache {
+
+    /**
+     * The version of the layout of an entry, to be changed
+     * along with any change to {@link NodeOutput} or to the
+     * way the {@link Serializer} is generated.
+     */
+    public static final int FORMAT_VERSION = 3;
+
+    /**
+     * The version of the {@link CeylonLexer} generated from
+     * the grammar, which changes along with the grammar
+     * version.
+     */
+    public static final String GENERATED_LEXER = "CeylonLexer";
+
+    private static final int MAGIC = 0xCE7100A5;
+    private static final String SUFFIX = ".ast";
+
+    private final File directory;
+
+    public TreeCache(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The key for a source file with the given contents
+     * and encoding, lexed by the lexer with the given
+     * version.
+     */
+    public String key(byte[] content, String encoding, 
+            String lexerVersion) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(String.valueOf(FORMAT_VERSION).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Serializer.GRAMMAR_VERSION.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(lexerVersion.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(encoding).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(content);
+            StringBuilder result = new StringBuilder();
+            for (byte b: digest.digest()) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read the unit stored with the given key.
+     *
+     * @return the unit, or null if it is not in the cache
+     */
+    public Entry load(String key) {
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            NodeInput input = new NodeInput(readContent(file));
+            if (input.readInt()!=MAGIC ||
+                    input.readInt()!=FORMAT_VERSION ||
+                    !Serializer.GRAMMAR_VERSION.equals(input.readString())) {
+                return null;
+            }
+            List<CommonToken> tokens = input.readTokens();
+            Tree.CompilationUnit cu = input.readCompilationUnit();
+            return new Entry(cu, tokens);
+        }
+        catch (IOException | RuntimeException e) {
+            //a truncated or corrupted entry
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store a unit, freshly parsed and without any errors,
+     * with the given key.
+     */
+    public void store(String key, Tree.CompilationUnit cu,
+            List<CommonToken> tokens) {
+        File file = new File(directory, key + SUFFIX);
+        File temp = null;
+        try {
+            NodeOutput output = new NodeOutput();
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeString(Serializer.GRAMMAR_VERSION);
+            output.writeTokens(tokens);
+            output.writeCompilationUnit(cu);
+            //write to a temporary file first, so that a
+            //concurrent reader never sees a partial entry
+            temp = File.createTempFile(key, ".tmp", directory);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                output.writeTo(out);
+            }
+            finally {
+                out.close();
+            }
+            if (temp.renameTo(file)) {
+                temp = null;
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            //just don't cache it
+        }
+        finally {
+            if (temp!=null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static byte[] readContent(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int length = 0;
+            int read;
+            while (length<content.length &&
+                    (read = in.read(content, length, content.length-length))>0) {
+                length += read;
+            }
+            if (length<content.length) {
+                throw new EOFException();
+            }
+            return content;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A unit read from the cache.
+     */
+    public static final class Entry {
+        private final Tree.CompilationUnit compilationUnit;
+        private final List<CommonToken> tokens;
+
+        Entry(Tree.CompilationUnit compilationUnit,
+                List<CommonToken> tokens) {
+            this.compilationUnit = compilationUnit;
+            this.tokens = tokens;
+        }
+
+        public Tree.CompilationUnit getCompilationUnit() {
+            return compilationUnit;
+        }
+
+        public List<CommonToken> getTokens() {
+            return tokens;
+        }
+    }
+
+}
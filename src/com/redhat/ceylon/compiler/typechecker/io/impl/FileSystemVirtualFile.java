@@ -5,7 +5,10 @@ import com.redhat.ceylon.compiler.typechecker.io.VirtualFile;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -14,6 +17,9 @@ import java.util.List;
  * @author Emmanuel Bernard <emmanuel@hibernate.org>
  */
 public class FileSystemVirtualFile implements VirtualFile {
+    //mapping a small file costs more than reading it
+    private static final long MAPPING_THRESHOLD = 256*1024;
+    
     private final File file;
     
 
@@ -52,6 +58,29 @@ public class FileSystemVirtualFile implements VirtualFile {
         }
     }
 
+    /**
+     * The contents of the file, mapped into memory if it is
+     * large, or else read directly into a buffer of the size
+     * of the file.
+     */
+    public ByteBuffer getContent() throws IOException {
+        FileInputStream stream = new FileInputStream( file );
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size>=MAPPING_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer)>=0) {}
+            buffer.flip();
+            return buffer;
+        }
+        finally {
+            stream.close();
+        }
+    }
+
     @Override
     public List<VirtualFile> getChildren() {
         List<VirtualFile> files;
@@ -1,5 +1,7 @@
 package com.redhat.ceylon.compiler.typechecker.model;
 
+import static com.redhat.ceylon.compiler.typechecker.model.Util.lookupMember;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -7,14 +9,23 @@ import java.util.Objects;
 
 public abstract class ClassOrInterface extends TypeDeclaration {
 
-    private List<Declaration> members = new ArrayList<Declaration>(3);
+    private MemberIndex.Members members = new MemberIndex.Members(3);
     private List<Annotation> annotations = new ArrayList<Annotation>(4);
+    // lazily built, and guarded by the members
+    private MemberIndex memberIndex;
     
     @Override
     public List<Annotation> getAnnotations() {
         return annotations;
     }
     
+    /**
+     * The members of this type. The list may be read, but
+     * a member must only be added by calling 
+     * {@link #addMember(Declaration)}, which holds the 
+     * lock on the list guarding the member index, since a
+     * concurrent lookup may be reading the list.
+     */
     @Override
     public List<Declaration> getMembers() {
         return members;
@@ -22,7 +33,35 @@ public abstract class ClassOrInterface extends TypeDeclaration {
     
     @Override
     public void addMember(Declaration declaration) {
-        members.add(declaration);
+        synchronized (members) {
+            members.add(declaration);
+            if (memberIndex!=null) {
+                memberIndex.add(declaration);
+            }
+        }
+    }
+    
+    @Override
+    public Declaration getDirectMember(String name, 
+            List<ProducedType> signature, boolean ellipsis) {
+        MemberIndex index;
+        synchronized (members) {
+            if (members.size()<MemberIndex.MIN_INDEXED_MEMBERS) {
+                index = null;
+            }
+            else {
+                index = memberIndex;
+                if (index==null || !index.isCurrent(members)) {
+                    index = new MemberIndex(members);
+                    memberIndex = index;
+                }
+            }
+        }
+        if (index==null) {
+            return super.getDirectMember(name, signature, ellipsis);
+        }
+        return lookupMember(index.get(name), 
+                name, signature, ellipsis);
     }
     
     @Override
@@ -4,12 +4,25 @@ import java.util.Map;
 
 public abstract class LazyProducedType extends ProducedType {
     private boolean init;
+    //written last, once the declaration and type
+    //arguments are assigned
+    private volatile boolean initialized;
     private Unit unit;
     public LazyProducedType(Unit unit) {
         this.unit = unit;
     }
     @Override
     public TypeDeclaration getDeclaration() {
+        if (initialized) {
+            return super.getDeclaration();
+        }
+        return initialize();
+    }
+    /**
+     * Initialize the type at most once, even when several
+     * threads ask for its declaration at the same time.
+     */
+    private synchronized TypeDeclaration initialize() {
         if (super.getDeclaration()==null) {
             if (init) {
                 //reentrant!
@@ -24,6 +37,7 @@ public abstract class LazyProducedType extends ProducedType {
                 setDeclaration(td);
                 setTypeArguments(initTypeArguments());
             }
+            initialized = true;
         }
         return super.getDeclaration();
     }
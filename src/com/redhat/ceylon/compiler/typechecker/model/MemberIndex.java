@@ -0,0 +1,125 @@
+package com.redhat.ceylon.compiler.typechecker.model;
+
+import static java.util.Collections.emptyList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the members of a scope by name, so that
+ * a lookup need only consider the members with the
+ * given name, in the order in which they occur in the
+ * scope. The overloaded versions of a method share the
+ * bucket of their abstraction.
+ *
+ * The index belongs to the list of members it was built
+ * from, and is stale once that list has been modified
+ * other than through {@link #add(Declaration)}. It is
+ * built and extended while holding the lock of its scope,
+ * but may be read without it, since the lists of members
+ * of each name are never modified once published.
+ *
+ * @see Util#lookupMember(List, String, List, boolean)
+ */
+final class MemberIndex {
+
+    /**
+     * Scopes with fewer members than this are searched
+     * linearly.
+     */
+    static final int MIN_INDEXED_MEMBERS = 8;
+
+    /**
+     * A list of members which counts its modifications,
+     * including replacements of a member.
+     */
+    static final class Members extends ArrayList<Declaration> {
+        private static final long serialVersionUID = 1L;
+        Members() {}
+        Members(int initialCapacity) {
+            super(initialCapacity);
+        }
+        @Override
+        public Declaration set(int index, Declaration element) {
+            modCount++;
+            return super.set(index, element);
+        }
+        int getModificationCount() {
+            return modCount;
+        }
+    }
+
+    private final Members members;
+    private final Map<String,List<Declaration>> byName;
+    private int size;
+    private int modifications;
+
+    MemberIndex(Members members) {
+        this.members = members;
+        byName = new ConcurrentHashMap<String,List<Declaration>>(members.size());
+        for (int i=0, l=members.size(); i<l; i++) {
+            index(members.get(i));
+        }
+        size = members.size();
+        modifications = members.getModificationCount();
+    }
+
+    /**
+     * Is this the index of the given list of members, in
+     * its current state?
+     */
+    boolean isCurrent(Members members) {
+        return this.members==members &&
+                modifications==members.getModificationCount();
+    }
+
+    /**
+     * Index a member which was just appended to the list
+     * of members. Does nothing if the index is already
+     * stale.
+     */
+    void add(Declaration member) {
+        if (modifications+1!=members.getModificationCount() ||
+                size+1!=members.size() ||
+                members.get(size)!=member) {
+            return;
+        }
+        index(member);
+        size++;
+        modifications++;
+    }
+
+    private void index(Declaration member) {
+        String name = member.getName();
+        if (name!=null) {
+            List<Declaration> named = byName.get(name);
+            List<Declaration> extended;
+            if (named==null) {
+                extended = new ArrayList<Declaration>(1);
+            }
+            else {
+                extended = new ArrayList<Declaration>(named.size()+1);
+                extended.addAll(named);
+            }
+            extended.add(member);
+            byName.put(name, extended);
+        }
+    }
+
+    /**
+     * The members with the given name, in the order in
+     * which they were added.
+     */
+    List<Declaration> get(String name) {
+        List<Declaration> named = byName.get(name);
+        if (named==null) {
+            return emptyList();
+        }
+        else {
+            return named;
+        }
+    }
+
+}
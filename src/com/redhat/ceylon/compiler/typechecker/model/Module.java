@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.redhat.ceylon.compiler.typechecker.context.ProducedTypeCache;
 
@@ -32,8 +33,12 @@ public class Module
     private List<Annotation> annotations = new ArrayList<Annotation>();
     private Unit unit;
     private String memoisedName;
-    private ProducedTypeCache cache = new ProducedTypeCache();
+    private ProducedTypeInterner interner = new ProducedTypeInterner();
+    private ProducedTypeCache cache = new ProducedTypeCache(interner, 
+            ProducedTypeCache.DEFAULT_CAPACITY);
     private String signature;
+    private final AtomicInteger typeIds = new AtomicInteger();
+    private final AtomicInteger hierarchyVersion = new AtomicInteger();
 
     /**
      * Whether or not the module is available in the
@@ -263,11 +268,45 @@ public class Module
         return cache;
     }
 
+    public ProducedTypeInterner getInterner(){
+        return interner;
+    }
+
+    /**
+     * Allocate the next identifier in the space of type
+     * ids of this module.
+     */
+    int nextTypeId() {
+        return typeIds.getAndIncrement();
+    }
+
+    /**
+     * The version of the supertypes of the declarations
+     * of this module, incremented whenever the supertypes
+     * of one of them may have changed.
+     */
+    int getHierarchyVersion() {
+        return hierarchyVersion.get();
+    }
+
+    /**
+     * Discard the cached linearizations of the supertypes 
+     * of the declarations of this module, and of those of
+     * other modules inheriting them.
+     */
+    void clearHierarchy() {
+        hierarchyVersion.incrementAndGet();
+    }
+
     public void clearCache(TypeDeclaration declaration) {
         ProducedTypeCache cache = getCache();
+        Set<TypeDeclaration> affected = Collections.emptySet();
         if(cache != null){
-            cache.clearForDeclaration(declaration);
+            affected = cache.clearForDeclaration(declaration);
         }
+        // the canonical types of the cleared roots may 
+        // refer to the declaration
+        interner.clearForDeclaration(declaration, affected);
         // FIXME: propagate to modules that import this module transitively
         // Done in the IDE JDTModule
     }
@@ -50,6 +50,27 @@ public class Package
         synchronized (units) {
             units.add(unit);
             members=null;
+            memberIndex=null;
+        }
+    }
+    
+    /**
+     * Replace the unit equal to the given unit with the
+     * given unit, at the same position among the units of
+     * this package, or add the given unit if there is no
+     * such unit.
+     */
+    public void replaceUnit(Unit unit) {
+        synchronized (units) {
+            int index = units.indexOf(unit);
+            if (index<0) {
+                units.add(unit);
+            }
+            else {
+                units.set(index, unit);
+            }
+            members=null;
+            memberIndex=null;
         }
     }
     
@@ -57,6 +78,7 @@ public class Package
         synchronized (units) {
             units.remove(unit);
             members=null;
+            memberIndex=null;
         }
     }
     
@@ -68,7 +90,8 @@ public class Package
         this.shared = shared;
     }
     
-    private List<Declaration> members;
+    private MemberIndex.Members members;
+    private MemberIndex memberIndex;
     
     @Override
     public List<Declaration> getMembers() {
@@ -83,12 +106,15 @@ public class Package
     
     @Override
     public void addMember(Declaration declaration) {
-        members=null;
+        synchronized (units) {
+            members=null;
+            memberIndex=null;
+        }
     }
     
-    private List<Declaration> getMembersInternal() {
-        List<Declaration> result = 
-                new ArrayList<Declaration>();
+    private MemberIndex.Members getMembersInternal() {
+        MemberIndex.Members result = 
+                new MemberIndex.Members();
         for (Unit unit: units) {
             for (Declaration d: unit.getDeclarations()) {
                 if (d.getContainer().equals(this)) {
@@ -138,7 +164,23 @@ public class Package
     @Override
     public Declaration getDirectMember(String name, 
             List<ProducedType> signature, boolean ellipsis) {
-        return lookupMember(getMembers(), 
+        List<Declaration> members = getMembers();
+        if (members.size()<MemberIndex.MIN_INDEXED_MEMBERS ||
+                //a subclass may compute its members itself
+                !(members instanceof MemberIndex.Members)) {
+            return lookupMember(members, 
+                    name, signature, ellipsis);
+        }
+        MemberIndex index;
+        synchronized (units) {
+            index = memberIndex;
+            if (index==null || 
+                    !index.isCurrent((MemberIndex.Members) members)) {
+                index = new MemberIndex((MemberIndex.Members) members);
+                memberIndex = index;
+            }
+        }
+        return lookupMember(index.get(name), 
                 name, signature, ellipsis);
     }
 
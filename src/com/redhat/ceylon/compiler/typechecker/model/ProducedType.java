@@ -39,10 +39,14 @@ public class ProducedType extends ProducedReference {
     private String underlyingType;
     private boolean isRaw;
     private ProducedType resolvedAliases;
+    private boolean canonical;
 
     // cache
     private int hashCode;
     private List<ProducedType> typeArgumentList;
+    private List<TypeParameter> freeTypeParameters;
+    // 0 if not yet known, 1 if plain, 2 if not
+    private byte plain;
     
     private Map<TypeParameter,SiteVariance> varianceOverrides = 
             Collections.emptyMap();
@@ -82,6 +86,7 @@ public class ProducedType extends ProducedReference {
     }
     
     public void setVariance(TypeParameter param, SiteVariance variance) {
+        checkMutable();
         if (varianceOverrides.isEmpty()) {
             varianceOverrides = new HashMap<TypeParameter,SiteVariance>();
         }
@@ -89,10 +94,55 @@ public class ProducedType extends ProducedReference {
     }
 
     public void setVarianceOverrides(Map<TypeParameter,SiteVariance> varianceOverrides) {
+        checkMutable();
         this.varianceOverrides = varianceOverrides;
     }
 
     ProducedType() {}
+    
+    /**
+     * Is this the canonical instance of its type, handed
+     * out by a {@link ProducedTypeInterner}? A canonical
+     * instance may not be modified.
+     */
+    public boolean isCanonical() {
+        return canonical;
+    }
+    
+    private void checkMutable() {
+        if (canonical) {
+            throw new IllegalStateException("canonical type may not be modified: " + 
+                    getProducedTypeQualifiedName());
+        }
+    }
+    
+    /**
+     * A canonical copy of this type, whose qualifying 
+     * type and type arguments are interned by the given
+     * interner.
+     */
+    ProducedType canonicalCopy(ProducedTypeInterner interner) {
+        ProducedType pt = new ProducedType();
+        pt.setDeclaration(super.getDeclaration());
+        pt.setQualifyingType(interner.intern(getQualifyingType()));
+        Map<TypeParameter, ProducedType> typeArguments = 
+                getTypeArguments();
+        if (!typeArguments.isEmpty()) {
+            Map<TypeParameter, ProducedType> args = 
+                    new HashMap<TypeParameter, ProducedType>(typeArguments.size());
+            for (Map.Entry<TypeParameter, ProducedType> e: 
+                    typeArguments.entrySet()) {
+                args.put(e.getKey(), interner.intern(e.getValue()));
+            }
+            pt.setTypeArguments(args);
+        }
+        if (!varianceOverrides.isEmpty()) {
+            pt.varianceOverrides = 
+                    new HashMap<TypeParameter, SiteVariance>(varianceOverrides);
+        }
+        pt.canonical = true;
+        return pt;
+    }
 
     @Override
     public TypeDeclaration getDeclaration() {
@@ -101,6 +151,7 @@ public class ProducedType extends ProducedReference {
     
     @Override
     void setDeclaration(Declaration declaration) {
+        checkMutable();
         if (declaration instanceof TypeDeclaration) {
             super.setDeclaration(declaration);
         }
@@ -109,6 +160,18 @@ public class ProducedType extends ProducedReference {
         }
     }
     
+    @Override
+    void setQualifyingType(ProducedType qualifyingType) {
+        checkMutable();
+        super.setQualifyingType(qualifyingType);
+    }
+    
+    @Override
+    void setTypeArguments(Map<TypeParameter,ProducedType> typeArguments) {
+        checkMutable();
+        super.setTypeArguments(typeArguments);
+    }
+    
     /**
      * Is this type exactly the same type as the
      * given type? 
@@ -118,6 +181,9 @@ public class ProducedType extends ProducedReference {
     }
     
     public boolean isExactlyInternal(ProducedType type) {
+        if (canonical && type==this) {
+            return true;
+        }
         if (depth.get()>50) {
             throw new RuntimeException("undecidable subtyping");
         }
@@ -338,15 +404,40 @@ public class ProducedType extends ProducedReference {
      * Is this type a subtype of the given type? 
      */
     public boolean isSubtypeOf(ProducedType type) {
-        return type!=null && resolveAliases()
-                .isSubtypeOfInternal(type.resolveAliases());
+        if (type==null) {
+            return false;
+        }
+        ProducedType subtype = resolveAliases();
+        ProducedType supertype = type.resolveAliases();
+        Unit unit = supertype.getDeclaration().getUnit();
+        ProducedTypeCache cache = 
+                unit==null || !ProducedTypeCache.isEnabled() ? 
+                        null : unit.getCache();
+        if (cache==null) {
+            return subtype.isSubtypeOfInternal(supertype);
+        }
+        else {
+            return cache.isSubtype(subtype, supertype, SUBTYPE);
+        }
     }
+    
+    private static final ProducedTypeCache.SubtypeFunction SUBTYPE = 
+            new ProducedTypeCache.SubtypeFunction() {
+        @Override
+        public boolean isSubtype(ProducedType subtype, 
+                ProducedType supertype) {
+            return subtype.isSubtypeOfInternal(supertype);
+        }
+    };
 
     /**
      * Is this type a subtype of the given type? Ignore
      * a certain self type constraint.
      */
     public boolean isSubtypeOfInternal(ProducedType type) {
+        if (canonical && type==this) {
+            return true;
+        }
         if (depth.get()>50) {
             throw new RuntimeException("undecidable subtyping");
         }
@@ -607,8 +698,60 @@ public class ProducedType extends ProducedReference {
      * types, even when there are no substitutions. 
      */
     public ProducedType substitute(Map<TypeParameter,ProducedType> substitutions) {
+        if (isUnchangedBy(substitutions)) {
+            return this;
+        }
         return new Substitution().substitute(this, substitutions).simple();
     }
+    
+    /**
+     * Would a substitution of the given type arguments 
+     * produce a type identical to this type? That is the 
+     * case of a plain type in which none of the given 
+     * type parameters occur.
+     */
+    private boolean isUnchangedBy(Map<TypeParameter,ProducedType> substitutions) {
+        if (!isPlain()) {
+            return false;
+        }
+        if (!substitutions.isEmpty()) {
+            List<TypeParameter> ftps = getFreeTypeParameters();
+            for (int i=0, l=ftps.size(); i<l; i++) {
+                if (substitutions.get(ftps.get(i))!=null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Is this type free of the constructs a substitution
+     * normalizes, or discards: union and intersection 
+     * types, raw types, and missing type arguments?
+     */
+    private boolean isPlain() {
+        if (plain==0 || !ProducedTypeCache.isEnabled()) {
+            plain = computePlain() ? (byte) 1 : (byte) 2;
+        }
+        return plain==1;
+    }
+    
+    private boolean computePlain() {
+        TypeDeclaration d = getDeclaration();
+        if (d instanceof UnionType || 
+                d instanceof IntersectionType || 
+                isRaw) {
+            return false;
+        }
+        for (ProducedType ta: getTypeArguments().values()) {
+            if (ta==null || !ta.isPlain()) {
+                return false;
+            }
+        }
+        ProducedType qt = getQualifyingType();
+        return qt==null || qt.isPlain();
+    }
 
     private ProducedType substituteInternal(Map<TypeParameter,ProducedType> substitutions) {
         return new InternalSubstitution().substitute(this, substitutions);
@@ -743,11 +886,21 @@ public class ProducedType extends ProducedReference {
     }
     
     /**
-     * Given a type declaration, return a produced type of 
+     * Given a type declaration, return a produced type of
      * which this type is an invariant subtype.
-     * 
+     *
+     * The result is usually the {@link #isCanonical()
+     * canonical} instance of the supertype, shared with
+     * every other caller through the supertype cache, and
+     * so are its qualifying type and type arguments. It
+     * may not be modified: {@link #setRaw(boolean)},
+     * {@link #setUnderlyingType(String)},
+     * {@link #setVariance(TypeParameter, SiteVariance)}
+     * and {@link #setVarianceOverrides(Map)} throw an
+     * {@link IllegalStateException}.
+     *
      * @param dec a type declaration
-     * 
+     *
      * @return a produced type of the given type declaration
      *         which is a supertype of this type, or null if
      *         there is no such supertype
@@ -765,11 +918,25 @@ public class ProducedType extends ProducedReference {
                 !hasUnderlyingType() && 
                 collectVarianceOverrides().isEmpty() &&
                 ProducedTypeCache.isEnabled();
-        ProducedTypeCache cache = dec.getUnit().getCache();
-        if (canCache && 
-                cache.containsKey(this, dec)) {
-            return cache.get(this, dec);
+        if (canCache) {
+            return dec.getUnit().getCache()
+                    .getSupertype(this, dec, SUPERTYPE);
+        }
+        else {
+            return computeSupertype(dec);
+        }
+    }
+    
+    private static final ProducedTypeCache.SupertypeFunction SUPERTYPE = 
+            new ProducedTypeCache.SupertypeFunction() {
+        @Override
+        public ProducedType getSupertype(ProducedType type, 
+                TypeDeclaration dec) {
+            return type.computeSupertype(dec);
         }
+    };
+    
+    private ProducedType computeSupertype(TypeDeclaration dec) {
         SupertypeCheck check = 
                 checkSupertype(getDeclaration(), dec);
         ProducedType superType;
@@ -780,7 +947,11 @@ public class ProducedType extends ProducedReference {
                 dec instanceof ClassOrInterface && 
                 dec.isToplevel() && 
                 dec.getTypeParameters().isEmpty()) {
-            superType = dec.getType();
+            ProducedTypeInterner interner = 
+                    ProducedTypeCache.isEnabled() ? 
+                            dec.getUnit().getInterner() : null;
+            superType = interner == null ? 
+                    dec.getType() : interner.getType(dec);
         }
         else if (check == SupertypeCheck.YES && 
                 dec == getDeclaration() && 
@@ -790,9 +961,6 @@ public class ProducedType extends ProducedReference {
         else {
             superType = getSupertype(new SupertypeCriteria(dec));
         }
-        if (canCache) {
-            cache.put(this, dec, superType);
-        }
         return superType;
     }
     
@@ -1732,6 +1900,9 @@ public class ProducedType extends ProducedReference {
         
         ProducedType substitute(ProducedType pt, 
                 Map<TypeParameter, ProducedType> substitutions) {
+            if (pt.isUnchangedBy(substitutions)) {
+                return pt;
+            }
             Declaration dec;
             if (pt.getDeclaration() instanceof UnionType) {
                 UnionType ut = 
@@ -1801,11 +1972,10 @@ public class ProducedType extends ProducedReference {
             if (substitutions.isEmpty() && typeArguments.isEmpty()) {
                 return Collections.emptyMap();
             }
-            Map<TypeParameter, ProducedType> map = 
-                    new HashMap<TypeParameter, ProducedType>(typeArguments.size());
+            TypeArguments map = new TypeArguments(typeArguments.size());
             for (Map.Entry<TypeParameter, ProducedType> e: typeArguments.entrySet()) {
                 if (e.getValue()!=null) {
-                    map.put(e.getKey(), substitute(e.getValue(), substitutions));
+                    map.set(e.getKey(), substitute(e.getValue(), substitutions));
                 }
             }
             /*ProducedType dt = pt.getDeclaringType();
@@ -2012,10 +2182,17 @@ public class ProducedType extends ProducedReference {
     }
     
     public void setUnderlyingType(String underlyingType) {
+        checkMutable();
         this.underlyingType = underlyingType;
         // if we have a resolvedAliases cache, update it too
         if (resolvedAliases != null && resolvedAliases != this) {
-            resolvedAliases.setUnderlyingType(underlyingType);
+            if (resolvedAliases.canonical) {
+                // shared, so resolve it again when needed
+                resolvedAliases = null;
+            }
+            else {
+                resolvedAliases.setUnderlyingType(underlyingType);
+            }
         }
     }
     
@@ -2151,10 +2328,18 @@ public class ProducedType extends ProducedReference {
     }
 
     public void setRaw(boolean isRaw) {
+        checkMutable();
         this.isRaw = isRaw;
         // if we have a resolvedAliases cache, update it too
-        if(resolvedAliases != null && resolvedAliases != this)
-            resolvedAliases.setRaw(isRaw);
+        if(resolvedAliases != null && resolvedAliases != this) {
+            if (resolvedAliases.canonical) {
+                // shared, so resolve it again when needed
+                resolvedAliases = null;
+            }
+            else {
+                resolvedAliases.setRaw(isRaw);
+            }
+        }
     }
     
     public ProducedType resolveAliases() {
@@ -2171,6 +2356,14 @@ public class ProducedType extends ProducedReference {
             finally { 
                 depth.set(depth.get()-1);
             }
+            if (resolvedAliases != this &&
+                    (resolvedAliases.underlyingType != underlyingType ||
+                     resolvedAliases.isRaw != isRaw)) {
+                // the resolved type may be shared, for example
+                // if it is canonical, or returned unchanged by
+                // a substitution, so never modify it
+                resolvedAliases = resolvedAliases.withoutUnderlyingType();
+            }
             // mark it as resolved so it doesn't get resolved again
             resolvedAliases.resolvedAliases = resolvedAliases;
             if (resolvedAliases != this) {
@@ -2269,67 +2462,76 @@ public class ProducedType extends ProducedReference {
     }
     
     public boolean containsTypeParameters() {
-    	TypeDeclaration d = getDeclaration();
-		if (d instanceof TypeParameter) {
-			return true;
-		}
-		else if (d instanceof UnionType) {
-			for (ProducedType ct: getCaseTypes()) {
-				if (ct.containsTypeParameters()) return true;
-			}
-		}
-		else if (d instanceof IntersectionType) {
-			for (ProducedType st: getSatisfiedTypes()) {
-				if (st.containsTypeParameters()) {
-				    return true;
-				}
-			}
-		}
-		else {
-			for (ProducedType at: getTypeArgumentList()) {
-				if (at!=null && at.containsTypeParameters()) {
-				    return true;
-				}
-			}
-			ProducedType qt = getQualifyingType();
-			if (qt!=null && qt.containsTypeParameters()) {
-			    return true;
-			}
-		}
-		return false;
+        return !getFreeTypeParameters().isEmpty();
     }
     
     public boolean containsTypeParameters(List<TypeParameter> params) {
+        List<TypeParameter> ftps = getFreeTypeParameters();
+        for (int i=0, l=ftps.size(); i<l; i++) {
+            if (params.contains(ftps.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * The type parameters which occur in this type, in its
+     * type arguments, its qualifying type, or its cases.
+     */
+    public List<TypeParameter> getFreeTypeParameters() {
+        if (freeTypeParameters==null || 
+                !ProducedTypeCache.isEnabled()) {
+            List<TypeParameter> result = 
+                    new ArrayList<TypeParameter>(2);
+            addFreeTypeParameters(result);
+            freeTypeParameters = result.isEmpty() ? 
+                    Collections.<TypeParameter>emptyList() : 
+                    unmodifiableList(result);
+        }
+        return freeTypeParameters;
+    }
+    
+    private void addFreeTypeParameters(List<TypeParameter> result) {
         TypeDeclaration d = getDeclaration();
         if (d instanceof TypeParameter) {
-            if (params.contains(d)) return true;
+            addFreeTypeParameter(result, (TypeParameter) d);
         }
         else if (d instanceof UnionType) {
-            for (ProducedType ct: getCaseTypes()) {
-                if (ct.containsTypeParameters(params)) {
-                    return true;
-                }
-            }
+            addFreeTypeParameters(result, getCaseTypes());
         }
         else if (d instanceof IntersectionType) {
-            for (ProducedType st: getSatisfiedTypes()) {
-                if (st.containsTypeParameters(params)) {
-                    return true;
-                }
-            }
+            addFreeTypeParameters(result, getSatisfiedTypes());
         }
         else {
-            for (ProducedType at: getTypeArgumentList()) {
-                if (at!=null && at.containsTypeParameters(params)) {
-                    return true;
-                }
-            }
+            addFreeTypeParameters(result, getTypeArgumentList());
             ProducedType qt = getQualifyingType();
-            if (qt!=null && qt.containsTypeParameters(params)) {
-                return true;
+            if (qt!=null) {
+                addFreeTypeParameters(result, 
+                        singletonList(qt));
+            }
+        }
+    }
+    
+    private static void addFreeTypeParameters(List<TypeParameter> result, 
+            List<ProducedType> types) {
+        for (int i=0, l=types.size(); i<l; i++) {
+            ProducedType t = types.get(i);
+            if (t!=null) {
+                List<TypeParameter> ftps = 
+                        t.getFreeTypeParameters();
+                for (int j=0, m=ftps.size(); j<m; j++) {
+                    addFreeTypeParameter(result, ftps.get(j));
+                }
             }
         }
-        return false;
+    }
+    
+    private static void addFreeTypeParameter(List<TypeParameter> result, 
+            TypeParameter tp) {
+        if (!result.contains(tp)) {
+            result.add(tp);
+        }
     }
     
     /*public boolean containsTypeAliases() {
@@ -2693,6 +2895,9 @@ public class ProducedType extends ProducedReference {
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
         if (obj == null || 
                 !(obj instanceof ProducedType)) {
             return false;
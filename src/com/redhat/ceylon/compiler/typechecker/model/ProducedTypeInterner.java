@@ -0,0 +1,400 @@
+package com.redhat.ceylon.compiler.typechecker.model;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out a single canonical instance of each
+ * structurally distinct produced type of a module, so
+ * that the types held by the caches of the typechecker
+ * are shared, and may be compared by identity.
+ *
+ * A canonical instance may not be modified: its
+ * setters throw an {@link IllegalStateException}. Types
+ * with an underlying type, raw types, and union and
+ * intersection types, are never interned, since their
+ * structural equality is not their identity.
+ *
+ * The interner only holds weak references to the
+ * canonical instances, which are forgotten once nothing
+ * else, such as an entry of the supertype cache, refers
+ * to them.
+ */
+public class ProducedTypeInterner {
+
+    /**
+     * A key of the table of canonical types, referring to
+     * a canonical type, which is compared structurally to
+     * the type of another key while it has not been
+     * garbage collected.
+     */
+    private static final class CanonicalRef
+            extends WeakReference<ProducedType> {
+        private final int hashCode;
+        // the declarations the type mentions, which are
+        // still known once it has been garbage collected
+        private final Set<TypeDeclaration> declarations;
+        CanonicalRef(ProducedType type,
+                ReferenceQueue<ProducedType> queue) {
+            super(type, queue);
+            hashCode = type.hashCode();
+            declarations = newDeclarationSet();
+            addDeclarations(type, declarations);
+        }
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj==this ||
+                    obj instanceof Probe && obj.equals(this) ||
+                    obj instanceof CanonicalRef &&
+                    hashCode==obj.hashCode() &&
+                    equalTypes(get(), ((CanonicalRef) obj).get());
+        }
+    }
+
+    /**
+     * A key used to look up the canonical instance of a
+     * type.
+     */
+    private static final class Probe {
+        private final ProducedType type;
+        private final int hashCode;
+        Probe(ProducedType type) {
+            this.type = type;
+            hashCode = type.hashCode();
+        }
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CanonicalRef &&
+                    hashCode==obj.hashCode() &&
+                    equalTypes(type, ((CanonicalRef) obj).get());
+        }
+    }
+
+    /**
+     * Add the declarations of the given type, of its
+     * qualifying type, and of its type arguments.
+     */
+    private static void addDeclarations(ProducedType type,
+            Set<TypeDeclaration> declarations) {
+        if (type!=null) {
+            declarations.add(type.getDeclaration());
+            addDeclarations(type.getQualifyingType(), declarations);
+            List<ProducedType> tal = type.getTypeArgumentList();
+            for (int i=0,l=tal.size();i<l;i++) {
+                addDeclarations(tal.get(i), declarations);
+            }
+        }
+    }
+
+    private static Set<TypeDeclaration> newDeclarationSet() {
+        return Collections.newSetFromMap(
+                new IdentityHashMap<TypeDeclaration,Boolean>());
+    }
+
+    private static boolean equalTypes(ProducedType type,
+            ProducedType other) {
+        return type!=null && other!=null &&
+                (type==other || type.equals(other));
+    }
+
+    /**
+     * The canonical type of a declaration, which is
+     * forgotten along with the canonical type.
+     */
+    private static final class DeclarationRef
+            extends WeakReference<ProducedType> {
+        private final TypeDeclaration declaration;
+        DeclarationRef(TypeDeclaration declaration,
+                ProducedType type,
+                ReferenceQueue<ProducedType> queue) {
+            super(type, queue);
+            this.declaration = declaration;
+        }
+    }
+
+    /**
+     * A key of the table of the types of declarations,
+     * comparing declarations by identity, since their
+     * equals() and hashCode() are much more expensive, and
+     * may fail for an incomplete model.
+     */
+    private static final class DeclarationKey {
+        private final TypeDeclaration declaration;
+        DeclarationKey(TypeDeclaration declaration) {
+            this.declaration = declaration;
+        }
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(declaration);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof DeclarationKey &&
+                    ((DeclarationKey) obj).declaration==declaration;
+        }
+    }
+
+    private final ConcurrentMap<Object,CanonicalRef> types =
+            new ConcurrentHashMap<Object,CanonicalRef>();
+    private final ConcurrentMap<DeclarationKey,DeclarationRef> declarationTypes =
+            new ConcurrentHashMap<DeclarationKey,DeclarationRef>();
+    private final ReferenceQueue<ProducedType> queue =
+            new ReferenceQueue<ProducedType>();
+    // the canonical types which mention each declaration,
+    // and the mentioned declarations by name, both guarded
+    // by the index, so that the types which mention a
+    // declaration are found without visiting every type
+    private final Map<TypeDeclaration,Set<CanonicalRef>> index =
+            new IdentityHashMap<TypeDeclaration,Set<CanonicalRef>>();
+    private final Map<String,Set<TypeDeclaration>> named =
+            new HashMap<String,Set<TypeDeclaration>>();
+
+    /**
+     * The canonical instance of the given type, or the
+     * given type itself, if it may not be interned.
+     */
+    public ProducedType intern(ProducedType type) {
+        if (type==null || type.isCanonical() ||
+                !isInternable(type)) {
+            return type;
+        }
+        CanonicalRef ref = types.get(new Probe(type));
+        ProducedType canonical = ref==null ? null : ref.get();
+        if (canonical==null) {
+            expunge();
+            canonical = type.canonicalCopy(this);
+            CanonicalRef newRef = new CanonicalRef(canonical, queue);
+            // indexed along with its insertion, so that it
+            // can not escape a concurrent clearing
+            synchronized (index) {
+                while (true) {
+                    CanonicalRef existing =
+                            types.putIfAbsent(newRef, newRef);
+                    if (existing==null) {
+                        addToIndex(newRef);
+                        break;
+                    }
+                    ProducedType existingType = existing.get();
+                    if (existingType!=null) {
+                        canonical = existingType;
+                        break;
+                    }
+                    //garbage collected, but not yet expunged
+                    remove(existing);
+                }
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * The canonical instance of the type of the given
+     * declaration, without instantiating a new type when
+     * it has already been interned.
+     *
+     * @see TypeDeclaration#getType()
+     */
+    public ProducedType getType(TypeDeclaration declaration) {
+        DeclarationKey key = new DeclarationKey(declaration);
+        DeclarationRef ref = declarationTypes.get(key);
+        ProducedType canonical = ref==null ? null : ref.get();
+        if (canonical==null) {
+            canonical = intern(declaration.getType());
+            // only a canonical type is remembered, since it
+            // is indexed under the declaration, and so is
+            // forgotten when the declaration is cleared
+            if (canonical!=null && canonical.isCanonical() &&
+                    canonical.getDeclaration()==declaration) {
+                DeclarationRef newRef =
+                        new DeclarationRef(declaration, canonical, queue);
+                if (ref==null) {
+                    declarationTypes.putIfAbsent(key, newRef);
+                }
+                else {
+                    declarationTypes.replace(key, ref, newRef);
+                }
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Forget the canonical types which have been garbage
+     * collected.
+     */
+    private void expunge() {
+        Reference<? extends ProducedType> ref;
+        while ((ref = queue.poll())!=null) {
+            if (ref instanceof CanonicalRef) {
+                synchronized (index) {
+                    remove((CanonicalRef) ref);
+                }
+            }
+            else {
+                DeclarationRef dr = (DeclarationRef) ref;
+                declarationTypes.remove(new DeclarationKey(dr.declaration), dr);
+            }
+        }
+    }
+
+    private void addToIndex(CanonicalRef ref) {
+        for (TypeDeclaration d: ref.declarations) {
+            Set<CanonicalRef> refs = index.get(d);
+            if (refs==null) {
+                // compared by identity, since the referent
+                // of a key may already be garbage collected
+                refs = Collections.newSetFromMap(
+                        new IdentityHashMap<CanonicalRef,Boolean>());
+                index.put(d, refs);
+                Set<TypeDeclaration> sameName = named.get(d.getName());
+                if (sameName==null) {
+                    sameName = newDeclarationSet();
+                    named.put(d.getName(), sameName);
+                }
+                sameName.add(d);
+            }
+            refs.add(ref);
+        }
+    }
+
+    /**
+     * Forget the given canonical type, if it has not been
+     * forgotten yet. Must be called holding the index.
+     */
+    private void remove(CanonicalRef ref) {
+        if (!types.remove(ref, ref)) {
+            return;
+        }
+        for (TypeDeclaration d: ref.declarations) {
+            Set<CanonicalRef> refs = index.get(d);
+            if (refs!=null) {
+                refs.remove(ref);
+                if (refs.isEmpty()) {
+                    index.remove(d);
+                    Set<TypeDeclaration> sameName = named.get(d.getName());
+                    if (sameName!=null) {
+                        sameName.remove(d);
+                        if (sameName.isEmpty()) {
+                            named.remove(d.getName());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Is the given type, and are its qualifying type and
+     * type arguments, fully identified by their structure?
+     */
+    static boolean isInternable(ProducedType type) {
+        if (type.isCanonical()) {
+            return true;
+        }
+        TypeDeclaration d = type.getDeclaration();
+        if (d==null ||
+                d instanceof UnionType ||
+                d instanceof IntersectionType ||
+                d instanceof UnknownType ||
+                type.getUnderlyingType()!=null ||
+                type.isRaw()) {
+            return false;
+        }
+        ProducedType qt = type.getQualifyingType();
+        if (qt!=null && !isInternable(qt)) {
+            return false;
+        }
+        List<ProducedType> tal = type.getTypeArgumentList();
+        for (int i=0,l=tal.size();i<l;i++) {
+            ProducedType ta = tal.get(i);
+            if (ta==null || !isInternable(ta)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of canonical types held, including any
+     * which have been garbage collected but not yet
+     * forgotten.
+     */
+    public int size() {
+        return types.size();
+    }
+
+    /**
+     * Forget the canonical types which mention the given
+     * declaration, or any of the given affected roots, as
+     * the declaration of the type, of its qualifying type,
+     * or of one of its type arguments.
+     * 
+     * @param declaration a declaration which changed, or
+     *        another instance of it
+     * @param affected the roots cleared from the cache for
+     *        the declaration, compared by identity
+     */
+    public void clearForDeclaration(TypeDeclaration declaration,
+            Set<TypeDeclaration> affected) {
+        expunge();
+        Set<TypeDeclaration> cleared = newDeclarationSet();
+        cleared.add(declaration);
+        cleared.addAll(affected);
+        synchronized (index) {
+            Set<TypeDeclaration> sameName = 
+                    named.get(declaration.getName());
+            if (sameName!=null) {
+                for (TypeDeclaration d: sameName) {
+                    // the declaration may be another instance 
+                    // of the declaration of an interned type, 
+                    // for example, one created when its unit 
+                    // was parsed again
+                    if (d!=declaration && d.equals(declaration)) {
+                        cleared.add(d);
+                    }
+                }
+            }
+            for (TypeDeclaration d: cleared) {
+                Set<CanonicalRef> refs = index.get(d);
+                if (refs!=null) {
+                    for (CanonicalRef ref: 
+                            new ArrayList<CanonicalRef>(refs)) {
+                        remove(ref);
+                    }
+                }
+            }
+        }
+        for (TypeDeclaration d: cleared) {
+            declarationTypes.remove(new DeclarationKey(d));
+        }
+    }
+
+    public void clear() {
+        synchronized (index) {
+            types.clear();
+            index.clear();
+            named.clear();
+        }
+        declarationTypes.clear();
+        expunge();
+    }
+
+}
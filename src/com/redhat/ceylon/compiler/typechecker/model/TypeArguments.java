@@ -0,0 +1,152 @@
+package com.redhat.ceylon.compiler.typechecker.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact map from type parameter to type argument,
+ * held in a pair of arrays in the order in which the
+ * type parameters were collected: those of the outer
+ * types of a declaration first, followed by those of
+ * the declaration itself.
+ *
+ * A lookup compares the given type parameter by
+ * identity with each slot before falling back to
+ * {@link Declaration#equals(Object)}, so the usual case
+ * is a couple of array loads, and no hash code of a
+ * declaration is ever computed. The map may not be
+ * modified once it has been handed out.
+ */
+public final class TypeArguments
+        extends AbstractMap<TypeParameter,ProducedType> {
+
+    private final TypeParameter[] parameters;
+    private final ProducedType[] arguments;
+    private int size;
+    private Set<Map.Entry<TypeParameter,ProducedType>> entrySet;
+
+    TypeArguments(int capacity) {
+        parameters = new TypeParameter[capacity];
+        arguments = new ProducedType[capacity];
+    }
+
+    /**
+     * The position of the given type parameter, or -1 if
+     * it has no argument in this map.
+     */
+    private int indexOf(Object key) {
+        for (int i=0; i<size; i++) {
+            if (parameters[i]==key) {
+                return i;
+            }
+        }
+        if (key instanceof TypeParameter) {
+            String name = ((TypeParameter) key).getName();
+            for (int i=0; i<size; i++) {
+                TypeParameter tp = parameters[i];
+                String tpName = tp.getName();
+                if ((name==null || tpName==null ||
+                        name.equals(tpName)) &&
+                        key.equals(tp)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Assign the argument of the given type parameter,
+     * replacing any existing assignment. Only for use
+     * while the map is being built.
+     */
+    void set(TypeParameter param, ProducedType arg) {
+        int index = indexOf(param);
+        if (index<0) {
+            index = size++;
+            parameters[index] = param;
+        }
+        arguments[index] = arg;
+    }
+
+    /**
+     * Assign all the arguments of the given map. Only for
+     * use while the map is being built.
+     */
+    void setAll(Map<TypeParameter,ProducedType> map) {
+        if (map instanceof TypeArguments) {
+            TypeArguments args = (TypeArguments) map;
+            for (int i=0; i<args.size; i++) {
+                set(args.parameters[i], args.arguments[i]);
+            }
+        }
+        else {
+            for (Map.Entry<TypeParameter,ProducedType> e:
+                    map.entrySet()) {
+                set(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    @Override
+    public ProducedType get(Object key) {
+        int index = indexOf(key);
+        return index<0 ? null : arguments[index];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key)>=0;
+    }
+
+    @Override
+    public Set<Map.Entry<TypeParameter,ProducedType>> entrySet() {
+        if (entrySet==null) {
+            entrySet = new AbstractSet<Map.Entry<TypeParameter,ProducedType>>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+                @Override
+                public Iterator<Map.Entry<TypeParameter,ProducedType>> iterator() {
+                    return new Iterator<Map.Entry<TypeParameter,ProducedType>>() {
+                        int index = 0;
+                        @Override
+                        public boolean hasNext() {
+                            return index<size;
+                        }
+                        @Override
+                        public Map.Entry<TypeParameter,ProducedType> next() {
+                            if (index>=size) {
+                                throw new NoSuchElementException();
+                            }
+                            int i = index++;
+                            return new SimpleImmutableEntry<TypeParameter,ProducedType>
+                                    (parameters[i], arguments[i]);
+                        }
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+        return entrySet;
+    }
+
+}
@@ -12,6 +12,7 @@ import static com.redhat.ceylon.compiler.typechecker.model.Util.strictlyBetterMa
 import static java.util.Collections.emptyList;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,6 +20,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.redhat.ceylon.compiler.typechecker.context.ProducedTypeCache;
 
 public abstract class TypeDeclaration extends Declaration 
         implements ImportableScope, Generic, Cloneable {
@@ -36,6 +40,19 @@ public abstract class TypeDeclaration extends Declaration
     private boolean inconsistentType;
     private boolean dynamic;
 	private boolean sealed;
+    // lazily computed, and immutable, so that they may
+    // be shared between threads
+    private volatile Supertypes supertypes;
+    private volatile TypeId typeId;
+    
+    /**
+     * Incremented whenever the supertypes of a declaration
+     * which does not belong to a module may have changed.
+     * The declarations of a module are versioned by 
+     * {@link Module#getHierarchyVersion()}.
+     */
+    private static final AtomicInteger detachedHierarchyVersion = 
+            new AtomicInteger();
     
 	public boolean isSealed() {
 	    return sealed;
@@ -69,7 +86,11 @@ public abstract class TypeDeclaration extends Declaration
     @Override
     protected TypeDeclaration clone() {
         try {
-            return (TypeDeclaration) super.clone();
+            TypeDeclaration clone = 
+                    (TypeDeclaration) super.clone();
+            clone.supertypes = null;
+            clone.typeId = null;
+            return clone;
         } 
         catch (CloneNotSupportedException e) {
             throw new RuntimeException(e);
@@ -120,6 +141,9 @@ public abstract class TypeDeclaration extends Declaration
 
     public void setExtendedType(ProducedType extendedType) {
         this.extendedType = extendedType;
+        if (supertypes!=null) {
+            clearSupertypeDeclarations();
+        }
     }
 
     public List<TypeDeclaration> getSatisfiedTypeDeclarations() {
@@ -140,6 +164,9 @@ public abstract class TypeDeclaration extends Declaration
 
     public void setSatisfiedTypes(List<ProducedType> satisfiedTypes) {
         this.satisfiedTypes = satisfiedTypes;
+        if (supertypes!=null) {
+            clearSupertypeDeclarations();
+        }
     }
 
     public List<TypeDeclaration> getCaseTypeDeclarations() {
@@ -370,8 +397,10 @@ public abstract class TypeDeclaration extends Declaration
      * Does the given declaration inherit the given type?
      */
     public boolean inherits(TypeDeclaration dec) {
-        //TODO: optimize this to avoid walking the
-        //      same supertypes multiple times
+        Supertypes cached = getCachedSupertypes();
+        if (cached!=null && cached.exact) {
+            return cached.contains(dec);
+        }
         for (TypeDeclaration t: 
                 getSatisfiedTypeDeclarations()) {
             if (t.inherits(dec)) {
@@ -867,9 +896,20 @@ public abstract class TypeDeclaration extends Declaration
         }
     }
     
+    /**
+     * The classes and interfaces which this declaration
+     * inherits, including itself if it is a class or
+     * interface. The list may not be modified.
+     */
     public List<TypeDeclaration> getSupertypeDeclarations() {
-        //TODO: optimize this to avoid walking the
-        //      same supertypes multiple times
+        Supertypes cached = getCachedSupertypes();
+        if (cached!=null) {
+            return cached.declarations;
+        }
+        return computeSupertypeDeclarations();
+    }
+    
+    private List<TypeDeclaration> computeSupertypeDeclarations() {
         ClassOrInterface etd = getExtendedTypeDeclaration();
         List<TypeDeclaration> stds = getSatisfiedTypeDeclarations();
         List<TypeDeclaration> result;
@@ -905,6 +945,243 @@ public abstract class TypeDeclaration extends Declaration
         return result;
     }
     
+    /**
+     * Classes, interfaces, type parameters, and aliases
+     * cache their linearization, since they are notified
+     * through {@link #clearProducedTypeCache()} when their
+     * supertypes change.
+     */
+    private boolean isSupertypeCacheable() {
+        return this instanceof ClassOrInterface ||
+                this instanceof TypeParameter ||
+                this instanceof TypeAlias;
+    }
+    
+    /**
+     * The cached linearization of this declaration, or 
+     * null if it may not be cached right now.
+     */
+    private Supertypes getCachedSupertypes() {
+        if (!isSupertypeCacheable() ||
+                !ProducedTypeCache.isEnabled()) {
+            return null;
+        }
+        Supertypes result = supertypes;
+        if (result==null || !result.isCurrent()) {
+            List<TypeDeclaration> list = 
+                    computeSupertypeDeclarations();
+            result = new Supertypes(this, list, 
+                    hasExactSupertypes());
+            supertypes = result;
+        }
+        return result;
+    }
+    
+    /**
+     * Does {@link #inherits(TypeDeclaration)} agree with
+     * membership of the linearization? Not if the 
+     * hierarchy passes through a declaration with its 
+     * own notion of inheritance, for example a union or
+     * {@code Nothing}.
+     */
+    private boolean hasExactSupertypes() {
+        TypeDeclaration etd = getExtendedTypeDeclaration();
+        if (etd!=null && !etd.hasCachedExactSupertypes()) {
+            return false;
+        }
+        List<ProducedType> sts = getSatisfiedTypes();
+        for (int i=0, l=sts.size(); i<l; i++) {
+            ProducedType st = sts.get(i);
+            TypeDeclaration std = 
+                    st==null ? null : st.getDeclaration();
+            if (std==null || !std.hasCachedExactSupertypes()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private boolean hasCachedExactSupertypes() {
+        Supertypes cached = getCachedSupertypes();
+        return cached!=null && cached.exact;
+    }
+    
+    /**
+     * Discard the cached linearization of every type 
+     * declaration of the module of this declaration.
+     */
+    void clearSupertypeDeclarations() {
+        TypeId id = getTypeId();
+        if (id==null) {
+            detachedHierarchyVersion.incrementAndGet();
+        }
+        else {
+            id.module.clearHierarchy();
+        }
+    }
+    
+    /**
+     * An identifier of a declaration which is unique 
+     * within its module.
+     */
+    private static final class TypeId {
+        final Module module;
+        final int id;
+        TypeId(Module module, int id) {
+            this.module = module;
+            this.id = id;
+        }
+    }
+    
+    /**
+     * The identifier of this declaration within its 
+     * module, or null if it does not belong to a module.
+     */
+    private TypeId getTypeId() {
+        TypeId result = typeId;
+        if (result==null) {
+            Unit unit = getUnit();
+            Package pkg = unit==null ? null : unit.getPackage();
+            Module module = pkg==null ? null : pkg.getModule();
+            if (module!=null) {
+                synchronized (this) {
+                    result = typeId;
+                    if (result==null) {
+                        result = new TypeId(module, 
+                                module.nextTypeId());
+                        typeId = result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * A linearization of the supertypes of a declaration,
+     * with a bitset over the type ids of each module it
+     * involves, for constant time membership tests, and
+     * the version of the hierarchy of each module when it
+     * was computed.
+     */
+    private static final class Supertypes {
+        
+        final List<TypeDeclaration> declarations;
+        final boolean exact;
+        private final Module[] modules;
+        private final BitSet[] ids;
+        private final int[] versions;
+        // -1 if no supertype is detached from a module
+        private final int detachedVersion;
+        private final long names;
+        
+        Supertypes(TypeDeclaration declaration,
+                List<TypeDeclaration> list, boolean exact) {
+            this.declarations = 
+                    Collections.unmodifiableList(list);
+            this.exact = exact;
+            List<Module> moduleList = new ArrayList<Module>(2);
+            List<BitSet> idList = new ArrayList<BitSet>(2);
+            TypeId own = declaration.getTypeId();
+            boolean detached = own==null;
+            if (!detached) {
+                idsFor(own.module, moduleList, idList);
+            }
+            long names = 0;
+            for (int i=0, l=list.size(); i<l; i++) {
+                TypeDeclaration td = list.get(i);
+                names |= nameBit(td);
+                TypeId tid = td.getTypeId();
+                if (tid==null) {
+                    detached = true;
+                }
+                else {
+                    idsFor(tid.module, moduleList, idList)
+                            .set(tid.id);
+                }
+            }
+            this.names = names;
+            modules = moduleList.toArray(new Module[moduleList.size()]);
+            ids = idList.toArray(new BitSet[idList.size()]);
+            versions = new int[modules.length];
+            for (int i=0; i<modules.length; i++) {
+                versions[i] = modules[i].getHierarchyVersion();
+            }
+            detachedVersion = detached ? 
+                    detachedHierarchyVersion.get() : -1;
+        }
+        
+        private static BitSet idsFor(Module module, 
+                List<Module> moduleList, List<BitSet> idList) {
+            for (int i=0, l=moduleList.size(); i<l; i++) {
+                if (moduleList.get(i)==module) {
+                    return idList.get(i);
+                }
+            }
+            BitSet result = new BitSet();
+            moduleList.add(module);
+            idList.add(result);
+            return result;
+        }
+        
+        /**
+         * Has the hierarchy of no module involved by this
+         * linearization changed since it was computed?
+         */
+        boolean isCurrent() {
+            for (int i=0; i<modules.length; i++) {
+                if (modules[i].getHierarchyVersion()!=versions[i]) {
+                    return false;
+                }
+            }
+            return detachedVersion<0 || 
+                    detachedVersion==detachedHierarchyVersion.get();
+        }
+        
+        /**
+         * One of 64 bits chosen by the hash of the name
+         * of the given declaration.
+         */
+        private static long nameBit(TypeDeclaration td) {
+            String name = td.getName();
+            return 1L << (name==null ? 0 : name.hashCode() & 63);
+        }
+        
+        /**
+         * Is the given class or interface one of these
+         * supertypes? A declaration which is not found by
+         * identity, but may have the same name as one of 
+         * the supertypes, is compared using 
+         * {@link Declaration#equals(Object)}.
+         */
+        boolean contains(TypeDeclaration dec) {
+            if (!(dec instanceof ClassOrInterface)) {
+                return false;
+            }
+            TypeId id = dec.getTypeId();
+            if (id!=null) {
+                for (int i=0; i<modules.length; i++) {
+                    if (modules[i]==id.module) {
+                        if (ids[i].get(id.id)) {
+                            return true;
+                        }
+                        break;
+                    }
+                }
+            }
+            if ((names & nameBit(dec))==0) {
+                return false;
+            }
+            for (int i=0, l=declarations.size(); i<l; i++) {
+                if (declarations.get(i).equals(dec)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+    }
+    
     /**
      * Clears the ProducedType supertype caches for that declaration. Does nothing
      * for Union/Intersection types since they are not cached. Only does something
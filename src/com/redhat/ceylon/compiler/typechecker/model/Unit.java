@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.redhat.ceylon.compiler.typechecker.context.ProducedTypeCache;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree.Identifier;
@@ -34,7 +35,8 @@ public class Unit {
 	private List<ImportList> importLists = new ArrayList<ImportList>();
 	private Set<Identifier> unresolvedReferences = new HashSet<Identifier>();
 	private Set<Declaration> duplicateDeclarations = new HashSet<Declaration>();
-    private final Set<String> dependentsOf = new HashSet<String>();
+    private final Set<String> dependentsOf = 
+            Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
     private String fullPath;
     private String relativePath;
     
@@ -1576,4 +1578,9 @@ public class Unit {
         return module != null ? module.getCache() : null;
     }
     
+    public ProducedTypeInterner getInterner() {
+        Module module = getPackage().getModule();
+        return module != null ? module.getInterner() : null;
+    }
+    
 }
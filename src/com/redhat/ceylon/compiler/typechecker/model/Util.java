@@ -670,14 +670,13 @@ public class Util {
 	private static Map<TypeParameter, ProducedType> aggregateTypeArguments(
             ProducedType receivingType, List<ProducedType> typeArguments,
             List<TypeParameter> typeParameters, int count) {
-	    Map<TypeParameter,ProducedType> map = 
-	            new HashMap<TypeParameter,ProducedType>(count);
+	    TypeArguments map = new TypeArguments(count);
 	    if (receivingType!=null) {
 	        TypeDeclaration rtd = receivingType.getDeclaration();
             if (rtd instanceof IntersectionType) {
 	            for (ProducedType dt: rtd.getSatisfiedTypes()) {
 	                while (dt!=null) {
-	                    map.putAll(dt.getTypeArguments());
+	                    map.setAll(dt.getTypeArguments());
 	                    dt = dt.getQualifyingType();
 	                }
 	            }
@@ -685,7 +684,7 @@ public class Util {
 	        else {
 	            ProducedType dt = receivingType;
 	            while (dt!=null) {
-	                map.putAll(dt.getTypeArguments());
+	                map.setAll(dt.getTypeArguments());
 	                dt = dt.getQualifyingType();
 	            }
 	        }
@@ -693,7 +692,7 @@ public class Util {
 	    //now turn the type argument tuple into a
 	    //map from type parameter to argument
 	    for (int i=0; i<typeParameters.size() && i<typeArguments.size(); i++) {
-	    	map.put(typeParameters.get(i), typeArguments.get(i));
+	    	map.set(typeParameters.get(i), typeArguments.get(i));
 	    }
 	    return map;
     }
@@ -765,7 +764,10 @@ public class Util {
             // cheaper c-for than foreach
             for (int i=0;i<list.size();i++) {
                 ProducedType t = list.get(i);
-                if (pt.isSubtypeOf(t)) {
+                if (unrelatedClasses(pt, t)) {
+                    continue;
+                }
+                else if (pt.isSubtypeOf(t)) {
                     add=false;
                     break;
                 }
@@ -857,7 +859,14 @@ public class Util {
                 // cheaper c-for than foreach
                 for (int i=0; i<list.size(); i++) {
                     ProducedType t = list.get(i);
-                    if (pt.isSupertypeOf(t)) {
+                    if (unrelatedClasses(pt, t)) {
+                        //neither is a subtype of the other
+                        //but their intersection is empty
+                        list.clear();
+                        list.add(unit.getNothingDeclaration().getType());
+                        return;
+                    }
+                    else if (pt.isSupertypeOf(t)) {
                         add = false;
                         break;
                     }
@@ -907,6 +916,43 @@ public class Util {
         }
     }
 
+    /**
+     * Are the given types types of two classes, neither of 
+     * which extends the other? Then neither type is a 
+     * subtype of the other, which may be determined without 
+     * comparing the types, and without walking the 
+     * interfaces the classes satisfy.
+     */
+    static boolean unrelatedClasses(ProducedType p, ProducedType q) {
+        TypeDeclaration pd = p.getDeclaration();
+        TypeDeclaration qd = q.getDeclaration();
+        return pd instanceof Class && !pd.isAlias() && 
+                qd instanceof Class && !qd.isAlias() &&
+                !mayExtend(pd, qd) && !mayExtend(qd, pd);
+    }
+    
+    private static boolean mayExtend(TypeDeclaration td, 
+            TypeDeclaration cd) {
+        //every class is a subtype of Anything, and of
+        //Object if it satisfies an interface
+        String name = cd.getName();
+        if (cd.isToplevel() && 
+                ("Object".equals(name) || "Anything".equals(name))) {
+            return true;
+        }
+        //classes have a single chain of superclasses
+        for (int i=0; td!=null; i++) {
+            if (!(td instanceof Class) || i>50) {
+                return true;
+            }
+            if (td.equals(cd)) {
+                return true;
+            }
+            td = td.getExtendedTypeDeclaration();
+        }
+        return false;
+    }
+    
     /**
      * The meet of two classes unrelated by inheritance,
      * or of Null with an interface type is empty. The meet
@@ -1112,7 +1158,8 @@ public class Util {
     private static boolean hasEmptyIntersectionOfInvariantInstantiations(
             ProducedType p, ProducedType q) {
 //        if (!p.containsTypeParameters() && !q.containsTypeParameters()) {
-            List<TypeDeclaration> stds = p.getDeclaration().getSupertypeDeclarations();
+            List<TypeDeclaration> stds = new ArrayList<TypeDeclaration>(
+                    p.getDeclaration().getSupertypeDeclarations());
             stds.retainAll(q.getDeclaration().getSupertypeDeclarations());
             for (TypeDeclaration std: stds) {
                 ProducedType pst = null;
@@ -1746,6 +1793,7 @@ public class Util {
     }
 
     public static void clearProducedTypeCache(TypeDeclaration decl) {
+        decl.clearSupertypeDeclarations();
         Module module = getModule(decl);
         if(module != null){
             module.clearCache(decl);
@@ -0,0 +1,753 @@
+package com.redhat.ceylon.compiler.typechecker.parser;
+
+import static com.redhat.ceylon.compiler.typechecker.parser.CeylonLexer.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.TokenSource;
+
+/**
+ * A hand written lexer producing the same tokens as the
+ * {@link CeylonLexer} generated from the grammar, scanning
+ * the characters of a {@link SourceStream} directly, with
+ * no prediction or backtracking. Every identifier of the
+ * unit shares its text with the other occurrences of the
+ * same identifier, and the keywords and operators have
+ * constant texts, so that requesting the text of a token
+ * doesn't extract it from the source again.
+ *
+ * Any input which the generated lexer might reject, such
+ * as an unknown character or a literal or comment running
+ * into the end of the source, is lexed by a
+ * {@link CeylonLexer}, so that the errors reported and the
+ * way the lexer recovers from them are exactly the same.
+ */
+public class CeylonScanner implements TokenSource {
+
+    /**
+     * Identifies the tokens produced by this scanner, in
+     * particular in the key of a cached token stream. To
+     * be changed along with any change to the scanner
+     * which affects the tokens it produces.
+     */
+    public static final String VERSION = "CeylonScanner/1";
+
+    private static final String[] KEYWORDS = {
+        "abstracts", "alias", "assembly", "assert", "assign",
+        "break", "case", "catch", "class", "continue",
+        "dynamic", "else", "exists", "extends", "finally",
+        "for", "function", "given", "if", "import", "in",
+        "interface", "is", "let", "module", "new", "nonempty",
+        "object", "of", "out", "outer", "package", "return",
+        "satisfies", "super", "switch", "then", "this",
+        "throw", "try", "value", "void", "while"
+    };
+
+    private static final int[] KEYWORD_TYPES = {
+        ABSTRACTED_TYPE, ALIAS, ASSEMBLY, ASSERT, ASSIGN,
+        BREAK, CASE_CLAUSE, CATCH_CLAUSE, CLASS_DEFINITION, CONTINUE,
+        DYNAMIC, ELSE_CLAUSE, EXISTS, EXTENDS, FINALLY_CLAUSE,
+        FOR_CLAUSE, FUNCTION_MODIFIER, TYPE_CONSTRAINT, IF_CLAUSE, IMPORT, IN_OP,
+        INTERFACE_DEFINITION, IS_OP, LET, MODULE, NEW, NONEMPTY,
+        OBJECT_DEFINITION, CASE_TYPES, OUT, OUTER, PACKAGE, RETURN,
+        SATISFIES, SUPER, SWITCH_CLAUSE, THEN_CLAUSE, THIS,
+        THROW, TRY_CLAUSE, VALUE_MODIFIER, VOID_MODIFIER, WHILE_CLAUSE
+    };
+
+    private final SourceStream input;
+    private final char[] data;
+    private final int length;
+
+    //the state at the start of the next token
+    private int index;
+    private int line = 1;
+    private int lineStart;
+
+    //the texts of the keywords and identifiers, and
+    //their types, in an open addressing hash table
+    private String[] names = new String[256];
+    private int[] types = new int[256];
+    private int nameCount;
+
+    //for input which is not well-formed
+    private CeylonLexer lexer;
+
+    public CeylonScanner(SourceStream input) {
+        this.input = input;
+        this.data = input.getData();
+        this.length = input.size();
+        for (int i=0; i<KEYWORDS.length; i++) {
+            String keyword = KEYWORDS[i];
+            types[lookup(keyword, keyword.hashCode())] = KEYWORD_TYPES[i];
+            add(keyword, keyword.hashCode());
+        }
+    }
+
+    /**
+     * The errors reported while lexing.
+     */
+    public List<LexError> getErrors() {
+        if (lexer==null) {
+            return Collections.emptyList();
+        }
+        else {
+            return lexer.getErrors();
+        }
+    }
+
+    @Override
+    public String getSourceName() {
+        return input.getSourceName();
+    }
+
+    @Override
+    public Token nextToken() {
+        int start = index;
+        if (start>=length) {
+            CommonToken eof = new CommonToken(input, Token.EOF,
+                    Token.DEFAULT_CHANNEL, start, start);
+            eof.setLine(line);
+            eof.setCharPositionInLine(start-lineStart);
+            return eof;
+        }
+        char c = data[start];
+        switch (c) {
+        case ' ': case '\t': case '\f': case '\r': case '\n':
+            return whitespace(start);
+        case '(':
+            return operator(LPAREN, start, 1, "(");
+        case ')':
+            return operator(RPAREN, start, 1, ")");
+        case '{':
+            return operator(LBRACE, start, 1, "{");
+        case '}':
+            return operator(RBRACE, start, 1, "}");
+        case '[':
+            return operator(LBRACKET, start, 1, "[");
+        case ']':
+            return operator(RBRACKET, start, 1, "]");
+        case ';':
+            return operator(SEMICOLON, start, 1, ";");
+        case ',':
+            return operator(COMMA, start, 1, ",");
+        case ':':
+            return operator(SEGMENT_OP, start, 1, ":");
+        case '@':
+            return operator(COMPILER_ANNOTATION, start, 1, "@");
+        case '^':
+            return operator(POWER_OP, start, 1, "^");
+        case '.':
+            if (is(start+1, '.')) {
+                if (is(start+2, '.')) {
+                    return operator(ELLIPSIS, start, 3, "...");
+                }
+                return operator(RANGE_OP, start, 2, "..");
+            }
+            return operator(MEMBER_OP, start, 1, ".");
+        case '=':
+            if (is(start+1, '=')) {
+                if (is(start+2, '=')) {
+                    return operator(IDENTICAL_OP, start, 3, "===");
+                }
+                return operator(EQUAL_OP, start, 2, "==");
+            }
+            if (is(start+1, '>')) {
+                return operator(COMPUTE, start, 2, "=>");
+            }
+            return operator(SPECIFY, start, 1, "=");
+        case '?':
+            if (is(start+1, '.')) {
+                return operator(SAFE_MEMBER_OP, start, 2, "?.");
+            }
+            return operator(OPTIONAL, start, 1, "?");
+        case '!':
+            if (is(start+1, '=')) {
+                return operator(NOT_EQUAL_OP, start, 2, "!=");
+            }
+            return operator(NOT_OP, start, 1, "!");
+        case '~':
+            if (is(start+1, '=')) {
+                return operator(COMPLEMENT_SPECIFY, start, 2, "~=");
+            }
+            return operator(COMPLEMENT_OP, start, 1, "~");
+        case '&':
+            if (is(start+1, '&')) {
+                if (is(start+2, '=')) {
+                    return operator(AND_SPECIFY, start, 3, "&&=");
+                }
+                return operator(AND_OP, start, 2, "&&");
+            }
+            if (is(start+1, '=')) {
+                return operator(INTERSECT_SPECIFY, start, 2, "&=");
+            }
+            return operator(INTERSECTION_OP, start, 1, "&");
+        case '|':
+            if (is(start+1, '|')) {
+                if (is(start+2, '=')) {
+                    return operator(OR_SPECIFY, start, 3, "||=");
+                }
+                return operator(OR_OP, start, 2, "||");
+            }
+            if (is(start+1, '=')) {
+                return operator(UNION_SPECIFY, start, 2, "|=");
+            }
+            return operator(UNION_OP, start, 1, "|");
+        case '+':
+            if (is(start+1, '+')) {
+                return operator(INCREMENT_OP, start, 2, "++");
+            }
+            if (is(start+1, '=')) {
+                return operator(ADD_SPECIFY, start, 2, "+=");
+            }
+            return operator(SUM_OP, start, 1, "+");
+        case '-':
+            if (is(start+1, '-')) {
+                return operator(DECREMENT_OP, start, 2, "--");
+            }
+            if (is(start+1, '=')) {
+                return operator(SUBTRACT_SPECIFY, start, 2, "-=");
+            }
+            if (is(start+1, '>')) {
+                return operator(ENTRY_OP, start, 2, "->");
+            }
+            return operator(DIFFERENCE_OP, start, 1, "-");
+        case '*':
+            if (is(start+1, '.')) {
+                return operator(SPREAD_OP, start, 2, "*.");
+            }
+            if (is(start+1, '*')) {
+                return operator(SCALE_OP, start, 2, "**");
+            }
+            if (is(start+1, '=')) {
+                return operator(MULTIPLY_SPECIFY, start, 2, "*=");
+            }
+            return operator(PRODUCT_OP, start, 1, "*");
+        case '/':
+            if (is(start+1, '/')) {
+                return lineComment(start);
+            }
+            if (is(start+1, '*')) {
+                return multiComment(start);
+            }
+            if (is(start+1, '=')) {
+                return operator(DIVIDE_SPECIFY, start, 2, "/=");
+            }
+            return operator(QUOTIENT_OP, start, 1, "/");
+        case '%':
+            if (is(start+1, '=')) {
+                return operator(REMAINDER_SPECIFY, start, 2, "%=");
+            }
+            return operator(REMAINDER_OP, start, 1, "%");
+        case '<':
+            if (is(start+1, '=')) {
+                if (is(start+2, '>')) {
+                    return operator(COMPARE_OP, start, 3, "<=>");
+                }
+                return operator(SMALL_AS_OP, start, 2, "<=");
+            }
+            return operator(SMALLER_OP, start, 1, "<");
+        case '>':
+            return larger(start);
+        case '`':
+            if (is(start+1, '`')) {
+                return string(start, start+2, STRING_END, STRING_MID);
+            }
+            return operator(BACKTICK, start, 1, "`");
+        case '"':
+            if (is(start+1, '"') && is(start+2, '"')) {
+                return verbatimString(start);
+            }
+            return string(start, start+1, STRING_LITERAL, STRING_START);
+        case '\'':
+            return characterLiteral(start);
+        case '#':
+            if (is(start+1, '!')) {
+                return lineComment(start);
+            }
+            if (start+1<length && isHexDigit(data[start+1])) {
+                return number(start, skipHexDigits(start+1), NATURAL_LITERAL);
+            }
+            return delegate(start);
+        case '$':
+            if (start+1<length && isBinaryDigit(data[start+1])) {
+                return number(start, skipBinaryDigits(start+1), NATURAL_LITERAL);
+            }
+            return delegate(start);
+        case '\\':
+            if ((is(start+1, 'i') || is(start+1, 'I')) &&
+                    start+2<length &&
+                    isIdentifierPart(data[start+2])) {
+                return escapedIdentifier(start);
+            }
+            return delegate(start);
+        default:
+            if (c>='0' && c<='9') {
+                return naturalOrFloat(start);
+            }
+            else if (isIdentifierStart(c)) {
+                return identifier(start);
+            }
+            else {
+                return delegate(start);
+            }
+        }
+    }
+
+    private boolean is(int i, char c) {
+        return i<length && data[i]==c;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return c>='a' && c<='z' || c>='A' && c<='Z' ||
+                c=='_' || c>='\u0080';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || c>='0' && c<='9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return c>='0' && c<='9' || c>='a' && c<='f' ||
+                c>='A' && c<='F';
+    }
+
+    private static boolean isBinaryDigit(char c) {
+        return c=='0' || c=='1';
+    }
+
+    private static boolean isMagnitude(char c) {
+        return c=='k' || c=='M' || c=='G' || c=='T' || c=='P';
+    }
+
+    private static boolean isFractionalMagnitude(char c) {
+        return c=='m' || c=='u' || c=='n' || c=='p' || c=='f';
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c==' ' || c=='\r' || c=='\t' || c=='\f' || c=='\n';
+    }
+
+    /**
+     * Create a token from the given index to the index at
+     * which the next token starts, which must be on the
+     * current line.
+     */
+    private Token token(int type, int channel, int start, int end,
+            String text) {
+        CommonToken token = new CommonToken(input, type, channel,
+                start, end-1);
+        token.setLine(line);
+        token.setCharPositionInLine(start-lineStart);
+        if (text!=null) {
+            token.setText(text);
+        }
+        index = end;
+        return token;
+    }
+
+    /**
+     * Create a token from the given index to the index at
+     * which the next token starts, which may be on a later
+     * line.
+     */
+    private Token multilineToken(int type, int channel, int start, int end) {
+        Token token = token(type, channel, start, end, null);
+        for (int i=start; i<end; i++) {
+            if (data[i]=='\n') {
+                line++;
+                lineStart = i+1;
+            }
+        }
+        return token;
+    }
+
+    private Token operator(int type, int start, int length, String text) {
+        return token(type, Token.DEFAULT_CHANNEL,
+                start, start+length, text);
+    }
+
+    /**
+     * Lex the next token with a {@link CeylonLexer}.
+     */
+    private Token delegate(int start) {
+        if (lexer==null) {
+            lexer = new CeylonLexer(input);
+        }
+        input.reset(start, line, start-lineStart);
+        Token token = lexer.nextToken();
+        index = input.index();
+        line = input.getLine();
+        lineStart = index - input.getCharPositionInLine();
+        return token;
+    }
+
+    private Token whitespace(int start) {
+        int i = start+1;
+        while (i<length && isWhitespace(data[i])) {
+            i++;
+        }
+        return multilineToken(WS, Token.HIDDEN_CHANNEL, start, i);
+    }
+
+    private Token lineComment(int start) {
+        int i = start+2;
+        while (i<length && data[i]!='\n' && data[i]!='\r') {
+            i++;
+        }
+        //the generated lexer leaves a lone \r to the
+        //following whitespace
+        if (is(i, '\r') && is(i+1, '\n')) {
+            i+=2;
+        }
+        else if (is(i, '\n')) {
+            i++;
+        }
+        return multilineToken(LINE_COMMENT, Token.HIDDEN_CHANNEL, start, i);
+    }
+
+    private Token multiComment(int start) {
+        int depth = 1;
+        int i = start+2;
+        while (depth>0) {
+            if (i+1>=length) {
+                //unterminated
+                return delegate(start);
+            }
+            char c = data[i];
+            if (c=='/' && data[i+1]=='*') {
+                depth++;
+                i+=2;
+            }
+            else if (c=='*' && data[i+1]=='/') {
+                depth--;
+                i+=2;
+            }
+            else {
+                i++;
+            }
+        }
+        return multilineToken(MULTI_COMMENT, Token.HIDDEN_CHANNEL, start, i);
+    }
+
+    /**
+     * A string literal, or a part of a string template,
+     * after its opening delimiter.
+     */
+    private Token string(int start, int i, int type, int templateType) {
+        while (true) {
+            if (i>=length) {
+                return delegate(start);
+            }
+            char c = data[i];
+            if (c=='"') {
+                i++;
+                break;
+            }
+            else if (c=='\\') {
+                i = skipEscapeSequence(i);
+                if (i<0) {
+                    return delegate(start);
+                }
+            }
+            else if (c=='`') {
+                if (i+1>=length) {
+                    return delegate(start);
+                }
+                if (data[i+1]=='`') {
+                    i+=2;
+                    type = templateType;
+                    //a backtick just after the template
+                    //delimiter belongs to this token
+                    if (is(i, '`')) {
+                        if (i+1>=length) {
+                            return delegate(start);
+                        }
+                        if (data[i+1]!='`') {
+                            i++;
+                        }
+                    }
+                    break;
+                }
+                i++;
+            }
+            else {
+                i++;
+            }
+        }
+        return multilineToken(type, Token.DEFAULT_CHANNEL, start, i);
+    }
+
+    private Token verbatimString(int start) {
+        int i = start+3;
+        while (true) {
+            if (i>=length) {
+                return delegate(start);
+            }
+            if (data[i]!='"') {
+                i++;
+            }
+            else if (i+1>=length) {
+                return delegate(start);
+            }
+            else if (data[i+1]!='"') {
+                i+=2;
+            }
+            else if (i+2>=length) {
+                return delegate(start);
+            }
+            else if (data[i+2]!='"') {
+                i+=3;
+            }
+            else {
+                break;
+            }
+        }
+        //the closing delimiter, and up to two quotes
+        //ending the string itself
+        for (int q=0; q<5 && is(i, '"'); q++) {
+            i++;
+        }
+        return multilineToken(VERBATIM_STRING, Token.DEFAULT_CHANNEL, start, i);
+    }
+
+    private Token characterLiteral(int start) {
+        int i = start+1;
+        while (true) {
+            if (i>=length) {
+                return delegate(start);
+            }
+            char c = data[i];
+            if (c=='\'') {
+                i++;
+                break;
+            }
+            else if (c=='\\') {
+                i = skipEscapeSequence(i);
+                if (i<0) {
+                    return delegate(start);
+                }
+            }
+            else {
+                i++;
+            }
+        }
+        return multilineToken(CHAR_LITERAL, Token.DEFAULT_CHANNEL, start, i);
+    }
+
+    /**
+     * Skip the escape sequence at the given index.
+     *
+     * @return the index after the escape sequence, or -1
+     *         if it runs into the end of the source
+     */
+    private int skipEscapeSequence(int i) {
+        i++;
+        if (i>=length) {
+            return -1;
+        }
+        if (data[i]=='{') {
+            i++;
+            while (i<length && data[i]!='}') {
+                i++;
+            }
+            if (i>=length) {
+                return -1;
+            }
+        }
+        return i+1;
+    }
+
+    private Token larger(int start) {
+        if (is(start+1, '=')) {
+            //a >= is a LARGE_AS_OP only if it is not
+            //followed by a character which may end a
+            //list of type arguments
+            int i = start+2;
+            while (i<length && isWhitespace(data[i])) {
+                i++;
+            }
+            if (i>=length) {
+                return delegate(start);
+            }
+            char c = data[i];
+            if (c!='>' && c!=']' && c!=')' && c!=',') {
+                return operator(LARGE_AS_OP, start, 2, ">=");
+            }
+        }
+        return operator(LARGER_OP, start, 1, ">");
+    }
+
+    private int skipDigits(int i) {
+        while (i<length && (data[i]>='0' && data[i]<='9' || data[i]=='_')) {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipHexDigits(int i) {
+        while (i<length && (isHexDigit(data[i]) || data[i]=='_')) {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipBinaryDigits(int i) {
+        while (i<length && (isBinaryDigit(data[i]) || data[i]=='_')) {
+            i++;
+        }
+        return i;
+    }
+
+    private Token number(int start, int end, int type) {
+        return token(type, Token.DEFAULT_CHANNEL, start, end, null);
+    }
+
+    private Token naturalOrFloat(int start) {
+        int i = skipDigits(start+1);
+        if (is(i, '.') && i+1<length &&
+                data[i+1]>='0' && data[i+1]<='9') {
+            i = skipDigits(i+2);
+            if (i<length) {
+                char c = data[i];
+                if (c=='e' || c=='E') {
+                    i++;
+                    if (is(i, '+') || is(i, '-')) {
+                        i++;
+                    }
+                    while (i<length && data[i]>='0' && data[i]<='9') {
+                        i++;
+                    }
+                }
+                else if (isMagnitude(c) || isFractionalMagnitude(c)) {
+                    i++;
+                }
+            }
+            return number(start, i, FLOAT_LITERAL);
+        }
+        else if (i<length && isFractionalMagnitude(data[i])) {
+            return number(start, i+1, FLOAT_LITERAL);
+        }
+        else {
+            if (i<length && isMagnitude(data[i])) {
+                i++;
+            }
+            return number(start, i, NATURAL_LITERAL);
+        }
+    }
+
+    private Token identifier(int start) {
+        int hash = data[start];
+        int i = start+1;
+        while (i<length && isIdentifierPart(data[i])) {
+            hash = 31*hash + data[i];
+            i++;
+        }
+        int slot = lookup(start, i, hash);
+        if (names[slot]==null) {
+            int cp = Character.codePointAt(data, start, i);
+            types[slot] = cp=='_' || Character.isLowerCase(cp) ?
+                    LIDENTIFIER : UIDENTIFIER;
+            slot = add(new String(data, start, i-start), hash);
+        }
+        int type = types[slot];
+        if (i==length && type!=UIDENTIFIER) {
+            //the generated lexer lexes a keyword at the
+            //very end of the source as an identifier
+            type = LIDENTIFIER;
+        }
+        return token(type, Token.DEFAULT_CHANNEL,
+                start, i, names[slot]);
+    }
+
+    private Token escapedIdentifier(int start) {
+        int type = data[start+1]=='i' ? LIDENTIFIER : UIDENTIFIER;
+        int hash = 0;
+        int i = start+2;
+        while (i<length && isIdentifierPart(data[i])) {
+            hash = 31*hash + data[i];
+            i++;
+        }
+        //the type of an escaped identifier is given by
+        //its prefix, not by the type of the shared name
+        int slot = lookup(start+2, i, hash);
+        if (names[slot]==null) {
+            int cp = Character.codePointAt(data, start+2, i);
+            types[slot] = cp=='_' || Character.isLowerCase(cp) ?
+                    LIDENTIFIER : UIDENTIFIER;
+            slot = add(new String(data, start+2, i-start-2), hash);
+        }
+        return token(type, Token.DEFAULT_CHANNEL, start, i, names[slot]);
+    }
+
+    /**
+     * The slot of the name with the given characters and
+     * hash, or of the empty slot where it belongs.
+     */
+    private int lookup(int start, int end, int hash) {
+        int mask = names.length-1;
+        int slot = (hash ^ hash>>>16) & mask;
+        int length = end-start;
+        while (true) {
+            String name = names[slot];
+            if (name==null) {
+                return slot;
+            }
+            if (name.length()==length && name.hashCode()==hash &&
+                    matches(name, start)) {
+                return slot;
+            }
+            slot = (slot+1) & mask;
+        }
+    }
+
+    private int lookup(String name, int hash) {
+        int mask = names.length-1;
+        int slot = (hash ^ hash>>>16) & mask;
+        while (names[slot]!=null && !names[slot].equals(name)) {
+            slot = (slot+1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(String name, int start) {
+        for (int i=0,l=name.length();i<l;i++) {
+            if (name.charAt(i)!=data[start+i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a name whose type was stored in its empty slot.
+     *
+     * @return the slot of the name, which changes if the
+     *         table grows
+     */
+    private int add(String name, int hash) {
+        int slot = lookup(name, hash);
+        names[slot] = name;
+        if (++nameCount*2>names.length) {
+            String[] oldNames = names;
+            int[] oldTypes = types;
+            names = new String[oldNames.length*2];
+            types = new int[oldNames.length*2];
+            for (int i=0; i<oldNames.length; i++) {
+                String oldName = oldNames[i];
+                if (oldName!=null) {
+                    int newSlot = lookup(oldName, oldName.hashCode());
+                    names[newSlot] = oldName;
+                    types[newSlot] = oldTypes[i];
+                    if (oldName==name) {
+                        slot = newSlot;
+                    }
+                }
+            }
+        }
+        return slot;
+    }
+
+}
@@ -0,0 +1,650 @@
+package com.redhat.ceylon.compiler.typechecker.parser;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.runtime.Token;
+import org.antlr.runtime.TokenSource;
+import org.antlr.runtime.TokenStream;
+
+/**
+ * Records how the rules and decisions of the grammar behave
+ * on real source code, for the parsers created with
+ * {@link CeylonParser#CeylonParser(TokenStream, ParserProfile, String)}.
+ *
+ * For each rule, the profile records how often it is
+ * invoked, how far ahead it looks to predict which
+ * alternative to take, and how long it spends backtracking.
+ * For each backtracking decision, that is, each syntactic
+ * predicate of the grammar, it records how often it is
+ * evaluated and succeeds, how many tokens it examines, and
+ * how long it takes. For each unit, it records the time
+ * spent parsing and backtracking.
+ *
+ * Lookahead depths are counted in tokens of the default
+ * channel, from the token at which the decision is made.
+ * A profile may be shared by parsers on several threads.
+ */
+public class ParserProfile {
+
+    private final Map<String,Rule> rules =
+            new HashMap<String,Rule>();
+    private final Map<String,Decision> decisions =
+            new HashMap<String,Decision>();
+    private final List<Unit> units = new ArrayList<Unit>();
+
+    /**
+     * A token stream recording the lookahead of the parser
+     * of the given unit into this profile.
+     */
+    Recorder recorder(TokenStream input, String unitName) {
+        return new Recorder(input, unitName);
+    }
+
+    private synchronized void merge(Map<String,Rule> unitRules,
+            Map<String,Decision> unitDecisions, Unit unit) {
+        for (Rule rule: unitRules.values()) {
+            Rule total = rules.get(rule.name);
+            if (total==null) {
+                rules.put(rule.name, rule);
+            }
+            else {
+                total.add(rule);
+            }
+        }
+        for (Decision decision: unitDecisions.values()) {
+            Decision total = decisions.get(decision.name);
+            if (total==null) {
+                decisions.put(decision.name, decision);
+            }
+            else {
+                total.add(decision);
+            }
+        }
+        units.add(unit);
+    }
+
+    /**
+     * The rules, by decreasing time spent backtracking,
+     * then by decreasing maximum lookahead.
+     */
+    public synchronized List<Rule> getRules() {
+        List<Rule> result = new ArrayList<Rule>(rules.values());
+        Collections.sort(result, new Comparator<Rule>() {
+            @Override
+            public int compare(Rule x, Rule y) {
+                int c = Long.compare(y.backtrackingNanos, x.backtrackingNanos);
+                return c!=0 ? c : Integer.compare(y.maxLookahead, x.maxLookahead);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The backtracking decisions, by decreasing time spent
+     * evaluating them.
+     */
+    public synchronized List<Decision> getDecisions() {
+        List<Decision> result = new ArrayList<Decision>(decisions.values());
+        Collections.sort(result, new Comparator<Decision>() {
+            @Override
+            public int compare(Decision x, Decision y) {
+                return Long.compare(y.nanos, x.nanos);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The units, by decreasing time spent parsing them.
+     */
+    public synchronized List<Unit> getUnits() {
+        List<Unit> result = new ArrayList<Unit>(units);
+        Collections.sort(result, new Comparator<Unit>() {
+            @Override
+            public int compare(Unit x, Unit y) {
+                return Long.compare(y.nanos, x.nanos);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Print the given number of most expensive backtracking
+     * decisions, rules, and units.
+     */
+    public void print(PrintStream out, int count) {
+        out.println("Backtracking decisions:");
+        for (Decision decision: first(getDecisions(), count)) {
+            out.println("  " + decision);
+        }
+        out.println("Rules:");
+        for (Rule rule: first(getRules(), count)) {
+            out.println("  " + rule);
+        }
+        out.println("Slowest units:");
+        for (Unit unit: first(getUnits(), count)) {
+            out.println("  " + unit);
+        }
+    }
+
+    private static <T> List<T> first(List<T> list, int count) {
+        return list.size()>count ? list.subList(0, count) : list;
+    }
+
+    private static String millis(long nanos) {
+        return nanos/1000000 + "." + nanos/100000%10 + " ms";
+    }
+
+    private static String average(long total, long count) {
+        return count==0 ? "0" :
+            String.valueOf(Math.round(total*10.0/count)/10.0);
+    }
+
+    /**
+     * The statistics of a rule of the grammar.
+     */
+    public static final class Rule {
+        private final String name;
+        private long invocations;
+        private long speculativeInvocations;
+        private long totalLookahead;
+        private int maxLookahead;
+        private long backtrackingNanos;
+
+        Rule(String name) {
+            this.name = name;
+        }
+
+        void add(Rule rule) {
+            invocations += rule.invocations;
+            speculativeInvocations += rule.speculativeInvocations;
+            totalLookahead += rule.totalLookahead;
+            maxLookahead = Math.max(maxLookahead, rule.maxLookahead);
+            backtrackingNanos += rule.backtrackingNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The number of invocations, not counting those
+         * made while backtracking.
+         */
+        public long getInvocations() {
+            return invocations;
+        }
+
+        /**
+         * The number of invocations made while backtracking.
+         */
+        public long getSpeculativeInvocations() {
+            return speculativeInvocations;
+        }
+
+        /**
+         * The deepest lookahead of any invocation.
+         */
+        public int getMaxLookahead() {
+            return maxLookahead;
+        }
+
+        /**
+         * The deepest lookahead of an invocation, on average.
+         */
+        public double getAverageLookahead() {
+            return invocations==0 ? 0 :
+                (double) totalLookahead / invocations;
+        }
+
+        /**
+         * The time spent evaluating the backtracking
+         * decisions of the rule, in nanoseconds.
+         */
+        public long getBacktrackingNanos() {
+            return backtrackingNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + invocations +
+                    " (+" + speculativeInvocations + " backtracking)" +
+                    ", lookahead avg " + average(totalLookahead, invocations) +
+                    " max " + maxLookahead +
+                    ", backtracking " + millis(backtrackingNanos);
+        }
+    }
+
+    /**
+     * The statistics of a syntactic predicate, that is, of
+     * a decision which backtracks.
+     */
+    public static final class Decision {
+        private final String name;
+        private final String ruleName;
+        private long evaluations;
+        private long successes;
+        private long totalDepth;
+        private int maxDepth;
+        private long nanos;
+
+        Decision(String name, String ruleName) {
+            this.name = name;
+            this.ruleName = ruleName;
+        }
+
+        void add(Decision decision) {
+            evaluations += decision.evaluations;
+            successes += decision.successes;
+            totalDepth += decision.totalDepth;
+            maxDepth = Math.max(maxDepth, decision.maxDepth);
+            nanos += decision.nanos;
+        }
+
+        /**
+         * The name of the syntactic predicate, for example,
+         * {@code synpred12_Ceylon}.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The rule in which the decision is made.
+         */
+        public String getRuleName() {
+            return ruleName;
+        }
+
+        public long getEvaluations() {
+            return evaluations;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        /**
+         * The largest number of tokens examined by an
+         * evaluation.
+         */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        /**
+         * The number of tokens examined by an evaluation,
+         * on average.
+         */
+        public double getAverageDepth() {
+            return evaluations==0 ? 0 :
+                (double) totalDepth / evaluations;
+        }
+
+        /**
+         * The time spent evaluating the predicate, in
+         * nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " in " + ruleName + " " + evaluations +
+                    " (" + successes + " succeeded)" +
+                    ", depth avg " + average(totalDepth, evaluations) +
+                    " max " + maxDepth + ", " + millis(nanos);
+        }
+    }
+
+    /**
+     * The statistics of the parsing of a unit.
+     */
+    public static final class Unit {
+        private final String name;
+        private final int tokens;
+        private final long nanos;
+        private final long backtrackingNanos;
+
+        Unit(String name, int tokens, long nanos,
+                long backtrackingNanos) {
+            this.name = name;
+            this.tokens = tokens;
+            this.nanos = nanos;
+            this.backtrackingNanos = backtrackingNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The number of tokens of the unit, on every
+         * channel.
+         */
+        public int getTokens() {
+            return tokens;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getBacktrackingNanos() {
+            return backtrackingNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + millis(nanos) +
+                    ", backtracking " + millis(backtrackingNanos) +
+                    " (" + tokens + " tokens)";
+        }
+    }
+
+    /**
+     * An invocation of a rule, or an evaluation of a
+     * syntactic predicate, in progress.
+     */
+    private static final class Frame {
+        Rule rule;
+        Decision decision;
+        long start;
+        int startPosition;
+        int depth;
+    }
+
+    /**
+     * The token stream of a single parser, which it wraps
+     * to observe its lookahead, and which is notified by
+     * the parser of the rules it enters and exits.
+     */
+    final class Recorder implements TokenStream {
+
+        private final TokenStream input;
+        private final String unitName;
+        private final Map<String,Rule> unitRules =
+                new HashMap<String,Rule>();
+        private final Map<String,Decision> unitDecisions =
+                new HashMap<String,Decision>();
+
+        private final List<Frame> frames = new ArrayList<Frame>();
+        private int frameCount;
+        private int predicateCount;
+        private long backtrackingNanos;
+
+        //the number of tokens consumed, and its value
+        //at each active marker
+        private int position;
+        private int[] markers = new int[16];
+        private int[] markPositions = new int[16];
+        private int markCount;
+
+        Recorder(TokenStream input, String unitName) {
+            this.input = input;
+            this.unitName = unitName;
+        }
+
+        /**
+         * The parser entered the given rule or syntactic
+         * predicate.
+         */
+        void ruleEntered(String ruleName) {
+            if (frameCount==frames.size()) {
+                frames.add(new Frame());
+            }
+            Frame frame = frames.get(frameCount++);
+            frame.start = System.nanoTime();
+            frame.startPosition = position;
+            frame.depth = 0;
+            if (ruleName.startsWith("synpred")) {
+                //the fragment of the syntactic predicate
+                String name = ruleName.endsWith("_fragment") ?
+                        ruleName.substring(0, ruleName.length()-9) :
+                        ruleName;
+                frame.rule = null;
+                Decision decision = unitDecisions.get(name);
+                if (decision==null) {
+                    decision = new Decision(name, enclosingRuleName());
+                    unitDecisions.put(name, decision);
+                }
+                frame.decision = decision;
+                predicateCount++;
+            }
+            else {
+                Rule rule = unitRules.get(ruleName);
+                if (rule==null) {
+                    rule = new Rule(ruleName);
+                    unitRules.put(ruleName, rule);
+                }
+                frame.rule = rule;
+                frame.decision = null;
+            }
+        }
+
+        /**
+         * The parser exited the innermost rule or syntactic
+         * predicate.
+         *
+         * @param failed true if it did not match
+         */
+        void ruleExited(boolean failed) {
+            Frame frame = frames.get(--frameCount);
+            long nanos = System.nanoTime() - frame.start;
+            Decision decision = frame.decision;
+            if (decision!=null) {
+                predicateCount--;
+                decision.evaluations++;
+                if (!failed) {
+                    decision.successes++;
+                }
+                decision.totalDepth += frame.depth;
+                decision.maxDepth = Math.max(decision.maxDepth, frame.depth);
+                decision.nanos += nanos;
+                if (predicateCount==0) {
+                    backtrackingNanos += nanos;
+                    Frame enclosing = enclosingRuleFrame();
+                    if (enclosing!=null) {
+                        enclosing.rule.backtrackingNanos += nanos;
+                    }
+                }
+                else {
+                    //the tokens examined by a nested predicate
+                    //were examined by the enclosing one
+                    Frame enclosing = enclosingPredicateFrame();
+                    enclosing.depth = Math.max(enclosing.depth,
+                            frame.startPosition + frame.depth -
+                                enclosing.startPosition);
+                }
+            }
+            else {
+                Rule rule = frame.rule;
+                if (predicateCount>0) {
+                    rule.speculativeInvocations++;
+                }
+                else {
+                    rule.invocations++;
+                    rule.totalLookahead += frame.depth;
+                    rule.maxLookahead = Math.max(rule.maxLookahead, frame.depth);
+                }
+            }
+            if (frameCount==0) {
+                merge(unitRules, unitDecisions,
+                        new Unit(unitName, input.size(), nanos,
+                                backtrackingNanos));
+                unitRules.clear();
+                unitDecisions.clear();
+                backtrackingNanos = 0;
+            }
+        }
+
+        private String enclosingRuleName() {
+            Frame frame = enclosingRuleFrame();
+            return frame==null ? "" : frame.rule.getName();
+        }
+
+        private Frame enclosingRuleFrame() {
+            for (int i=frameCount-1; i>=0; i--) {
+                Frame frame = frames.get(i);
+                if (frame.rule!=null) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        private Frame enclosingPredicateFrame() {
+            for (int i=frameCount-1; i>=0; i--) {
+                Frame frame = frames.get(i);
+                if (frame.decision!=null) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The parser looked at the k-th token ahead.
+         */
+        private void lookahead(int k) {
+            if (k<=0 || frameCount==0) {
+                return;
+            }
+            Frame frame = frames.get(frameCount-1);
+            int depth;
+            if (predicateCount>0) {
+                if (frame.decision==null) {
+                    frame = enclosingPredicateFrame();
+                }
+                depth = position - frame.startPosition + k;
+            }
+            else {
+                //a cyclic DFA consumes tokens to predict,
+                //then rewinds to its marker
+                int anchor = markCount>0 ? markPositions[0] : position;
+                depth = position - anchor + k;
+            }
+            if (depth>frame.depth) {
+                frame.depth = depth;
+            }
+        }
+
+        @Override
+        public Token LT(int k) {
+            lookahead(k);
+            return input.LT(k);
+        }
+
+        @Override
+        public int LA(int i) {
+            lookahead(i);
+            return input.LA(i);
+        }
+
+        @Override
+        public void consume() {
+            position++;
+            input.consume();
+        }
+
+        @Override
+        public int mark() {
+            int marker = input.mark();
+            if (markCount==markers.length) {
+                int[] newMarkers = new int[markCount*2];
+                int[] newMarkPositions = new int[markCount*2];
+                System.arraycopy(markers, 0, newMarkers, 0, markCount);
+                System.arraycopy(markPositions, 0, newMarkPositions, 0, markCount);
+                markers = newMarkers;
+                markPositions = newMarkPositions;
+            }
+            markers[markCount] = marker;
+            markPositions[markCount] = position;
+            markCount++;
+            return marker;
+        }
+
+        @Override
+        public void rewind(int marker) {
+            for (int i=markCount-1; i>=0; i--) {
+                if (markers[i]==marker) {
+                    position = markPositions[i];
+                    markCount = i;
+                    break;
+                }
+            }
+            input.rewind(marker);
+        }
+
+        @Override
+        public void rewind() {
+            if (markCount>0) {
+                position = markPositions[markCount-1];
+            }
+            input.rewind();
+        }
+
+        @Override
+        public void release(int marker) {
+            input.release(marker);
+        }
+
+        @Override
+        public void seek(int index) {
+            input.seek(index);
+        }
+
+        @Override
+        public int index() {
+            return input.index();
+        }
+
+        @Override
+        public int size() {
+            return input.size();
+        }
+
+        @Override
+        public String getSourceName() {
+            return input.getSourceName();
+        }
+
+        @Override
+        public Token get(int i) {
+            return input.get(i);
+        }
+
+        @Override
+        public int range() {
+            return input.range();
+        }
+
+        @Override
+        public TokenSource getTokenSource() {
+            return input.getTokenSource();
+        }
+
+        @Override
+        public String toString(int start, int stop) {
+            return input.toString(start, stop);
+        }
+
+        @Override
+        public String toString(Token start, Token stop) {
+            return input.toString(start, stop);
+        }
+
+        @Override
+        public String toString() {
+            return input.toString();
+        }
+    }
+
+}
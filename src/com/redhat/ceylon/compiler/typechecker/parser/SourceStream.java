@@ -0,0 +1,123 @@
+package com.redhat.ceylon.compiler.typechecker.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import org.antlr.runtime.ANTLRInputStream;
+import org.antlr.runtime.ANTLRStringStream;
+
+/**
+ * The characters of a source file, decoded in bulk into a
+ * single array, which feeds the lexer without the copies
+ * through a reader and a growing buffer performed by an
+ * {@link ANTLRInputStream}. Malformed input is replaced,
+ * just as it is by an {@link ANTLRInputStream}.
+ */
+public class SourceStream extends ANTLRStringStream {
+
+    public SourceStream(char[] data, int length) {
+        super(data, length);
+    }
+
+    /**
+     * The characters of the stream, of which only the first
+     * {@link #size()} are meaningful.
+     */
+    char[] getData() {
+        return data;
+    }
+
+    /**
+     * Move to the given index, at the given line and
+     * position in line.
+     */
+    void reset(int index, int line, int charPositionInLine) {
+        this.p = index;
+        this.line = line;
+        this.charPositionInLine = charPositionInLine;
+    }
+
+    /**
+     * Decode the remaining bytes of the given buffer, which
+     * is left unchanged.
+     *
+     * @param encoding the encoding of the bytes, or null
+     *        for the default encoding of the platform
+     */
+    public static SourceStream decode(ByteBuffer bytes, String encoding) {
+        Charset charset = encoding==null ?
+                Charset.defaultCharset() :
+                Charset.forName(encoding);
+        if (isAsciiCompatible(charset)) {
+            char[] data = decodeAscii(bytes);
+            if (data!=null) {
+                return new SourceStream(data, data.length);
+            }
+        }
+        try {
+            CharBuffer chars = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(bytes.duplicate());
+            if (chars.hasArray() && chars.arrayOffset()==0 &&
+                    chars.position()==0) {
+                return new SourceStream(chars.array(), chars.remaining());
+            }
+            else {
+                char[] data = new char[chars.remaining()];
+                chars.get(data);
+                return new SourceStream(data, data.length);
+            }
+        }
+        catch (CharacterCodingException e) {
+            //never happens, since errors are replaced
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) ||
+                charset.equals(StandardCharsets.US_ASCII) ||
+                charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Widen the given bytes to characters, if they are all
+     * ASCII characters, which is usually the case of source
+     * files.
+     *
+     * @return the characters, or null if there is a byte
+     *         which is not an ASCII character
+     */
+    private static char[] decodeAscii(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        int position = bytes.position();
+        char[] data = new char[length];
+        if (bytes.hasArray()) {
+            byte[] array = bytes.array();
+            int offset = bytes.arrayOffset() + position;
+            for (int i=0; i<length; i++) {
+                byte b = array[offset+i];
+                if (b<0) {
+                    return null;
+                }
+                data[i] = (char) b;
+            }
+        }
+        else {
+            for (int i=0; i<length; i++) {
+                byte b = bytes.get(position+i);
+                if (b<0) {
+                    return null;
+                }
+                data[i] = (char) b;
+            }
+        }
+        return data;
+    }
+
+}
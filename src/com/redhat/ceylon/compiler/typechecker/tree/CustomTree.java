@@ -6,6 +6,41 @@ import org.antlr.runtime.Token;
 
 public class CustomTree extends Tree {
     
+    /**
+     * The variant of the given node written to a tree
+     * cache: 0 for a node defined in {@link Tree}, or the
+     * number of one of the custom nodes defined here.
+     */
+    static int variantOf(Node node) {
+        if (node instanceof FunctionArgument) return 1;
+        if (node instanceof AttributeDeclaration) return 2;
+        if (node instanceof Variable) return 3;
+        if (node instanceof MethodDeclaration) return 4;
+        if (node instanceof MethodDefinition) return 5;
+        if (node instanceof ClassDefinition) return 6;
+        if (node instanceof ExtendedTypeExpression) return 7;
+        if (node instanceof IsCase) return 8;
+        return 0;
+    }
+    
+    /**
+     * Instantiate the custom node with the given variant,
+     * or return null if there is no such variant.
+     */
+    static Node createVariant(int variant, Token token) {
+        switch (variant) {
+        case 1: return new FunctionArgument(token);
+        case 2: return new AttributeDeclaration(token);
+        case 3: return new Variable(token);
+        case 4: return new MethodDeclaration(token);
+        case 5: return new MethodDefinition(token);
+        case 6: return new ClassDefinition(token);
+        case 7: return new ExtendedTypeExpression(token);
+        case 8: return new IsCase(token);
+        default: return null;
+        }
+    }
+    
     public static class FunctionArgument 
             extends Tree.FunctionArgument {
         public FunctionArgument(Token token) {
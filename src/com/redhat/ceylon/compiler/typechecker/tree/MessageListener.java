@@ -0,0 +1,12 @@
+package com.redhat.ceylon.compiler.typechecker.tree;
+
+/**
+ * Notified of each message added to a node by the thread
+ * with which it is {@link Node#setMessageListener
+ * registered}, as soon as it is added.
+ */
+public interface MessageListener {
+
+    void messageAdded(Node node, Message message);
+
+}
@@ -1,11 +1,9 @@
 package com.redhat.ceylon.compiler.typechecker.tree;
 
 import java.io.StringWriter;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.Token;
 
 import com.redhat.ceylon.compiler.typechecker.analyzer.AnalysisError;
@@ -19,17 +17,25 @@ import com.redhat.ceylon.compiler.typechecker.util.PrintVisitor;
 
 public abstract class Node {
     
-    private String text;
-    private Token token;
-    private Token endToken;
-    private Token firstChildToken;
-    private Token lastChildToken;
+    private static final ThreadLocal<MessageListener> messageListener = 
+            new ThreadLocal<MessageListener>();
+    
+    //the positions of the tokens in the source map,
+    //which also holds the errors of the few nodes
+    //which have them
+    private SourceMap sourceMap;
+    private int token = SourceMap.NONE;
+    private int endToken = SourceMap.NONE;
+    private int firstChildToken = SourceMap.NONE;
+    private int lastChildToken = SourceMap.NONE;
     private Scope scope;
     private Unit unit;
-    private List<Message> errors = null;
     
     protected Node(Token token) {
-        this.token = token;
+        if (token!=null) {
+            sourceMap = SourceMap.getCurrent();
+            this.token = sourceMap.indexOf(token);
+        }
     }
     
     /**
@@ -55,26 +61,37 @@ public abstract class Node {
         this.unit = unit;
     }
     
+    /**
+     * The tokens of the unit, to which the token
+     * positions of the node refer, or null if the
+     * node has no tokens.
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+    
     /**
      * The text of the corresponding ANTLR node.
      */
     public String getText() {
+        String text = getRawText();
     	if (text!=null) {
     		return text;
     	}
-    	else if (token==null) {
+    	else if (token==SourceMap.NONE) {
     		return "";
     	}
-    	else if (endToken==null) {
-    		return token.getText();
+    	else if (endToken==SourceMap.NONE) {
+    		return sourceMap.getText(token);
     	}
     	else {
-    		return token.getText() + endToken.getText();
+    		return sourceMap.getText(token) + 
+    		        sourceMap.getText(endToken);
     	}
     }
     
     public void setText(String text) {
-        this.text = text;
+        setRawText(text);
     }
     
     /**
@@ -82,24 +99,29 @@ public abstract class Node {
      * since the two trees are isomorphic.
      */
     public Token getToken() {
-    	return getFirstChildToken();
+    	return toToken(getFirstChildToken());
     }
     
     public Token getMainToken() {
-        return token;
+        return toToken(token);
     }
     
     public Token getMainEndToken() {
-        return endToken;
+        return toToken(endToken);
+    }
+    
+    private Token toToken(int position) {
+        return position==SourceMap.NONE ? 
+                null : sourceMap.getToken(position);
     }
     
     public String getLocation() {
-    	Token token = getToken();
-    	Token endToken = getEndToken();
-		if (token==null) {
+    	int token = getFirstChildToken();
+    	int endToken = getLastChildToken();
+		if (token==SourceMap.NONE) {
     		return "unknown location";
     	}
-    	else if (endToken==null) {
+    	else if (endToken==SourceMap.NONE) {
     		return toLocation(token);
     	}
     	else {
@@ -109,98 +131,203 @@ public abstract class Node {
     }
     
     public Integer getStartIndex() {
-    	Token token = getToken();
-    	if (token==null) {
+    	int token = getFirstChildToken();
+    	if (token==SourceMap.NONE) {
     		return null;
     	}
     	else {
-    		return ((CommonToken) token).getStartIndex();
+    		return sourceMap.getStartIndex(token);
     	}
     }
 
     public Integer getStopIndex() {
-    	Token token = getEndToken();
-    	if (token==null) {
-    		token = getToken();
+    	int token = getLastChildToken();
+    	if (token==SourceMap.NONE) {
+    		token = getFirstChildToken();
     	}
-    	if (token==null) {
+    	if (token==SourceMap.NONE) {
     		return null;
     	}
     	else {
-    		return ((CommonToken) token).getStopIndex();
+    		return sourceMap.getStopIndex(token);
     	}
     }
 
-	private static String toLocation(Token token) {
-		return token.getLine() + ":" + 
-				token.getCharPositionInLine();
+	private String toLocation(int token) {
+		return sourceMap.getLine(token) + ":" + 
+				sourceMap.getCharPositionInLine(token);
 	}
     
-	private static String toEndLocation(Token token) {
-		return token.getLine() + ":" + 
-				(token.getCharPositionInLine()
-				+ token.getText().length()-1);
+	private String toEndLocation(int token) {
+		return sourceMap.getLine(token) + ":" + 
+				(sourceMap.getCharPositionInLine(token)
+				+ sourceMap.getText(token).length()-1);
 	}
     
     private static boolean isMissingToken(Token t) {
         return t instanceof MissingToken;
     }
 
+    private boolean isMissingToken(int token) {
+        return token!=SourceMap.NONE && 
+                sourceMap.isMissing(token);
+    }
+
     public boolean isMissingToken() {
         return isMissingToken(token);
     }
 
-    private Token getFirstChildToken() {
-        Token token = this.token==null || 
+    private int getFirstChildToken() {
+        int token = this.token==SourceMap.NONE || 
                 //the tokens ANTLR inserts to represent missing tokens
                 //don't come with useful offset information
                 isMissingToken(this.token) ?
-                null : this.token;
-        if (firstChildToken!=null && 
-                (token==null || 
-                firstChildToken.getTokenIndex()<token.getTokenIndex())) {
+                SourceMap.NONE : this.token;
+        if (firstChildToken!=SourceMap.NONE && 
+                (token==SourceMap.NONE || 
+                sourceMap.getTokenIndex(firstChildToken) <
+                        sourceMap.getTokenIndex(token))) {
             token = firstChildToken;
         }
 		return token;
     }
 
-    private Token getLastChildToken() {
-		Token token=this.endToken==null || 
+    private int getLastChildToken() {
+		int token=this.endToken==SourceMap.NONE || 
 		        //the tokens ANTLR inserts to represent missing tokens
 		        //don't come with useful offset information
 		        isMissingToken(endToken) ?
 				this.token : this.endToken;
-        if (lastChildToken!=null && 
-                (token==null || 
-                lastChildToken.getTokenIndex()>token.getTokenIndex())) {
+        if (lastChildToken!=SourceMap.NONE && 
+                (token==SourceMap.NONE || 
+                sourceMap.getTokenIndex(lastChildToken) >
+                        sourceMap.getTokenIndex(token))) {
             token = lastChildToken;
         }
 		return token;
     }
     
     public Token getEndToken() {
-    	return getLastChildToken();
+    	return toToken(getLastChildToken());
 	}
     
     public void setEndToken(Token endToken) {
         //the tokens ANTLR inserts to represent missing tokens
         //don't come with useful offset information
-        if (endToken==null || !isMissingToken(endToken)) {
-            this.endToken = endToken;
+        if (endToken==null) {
+            this.endToken = SourceMap.NONE;
+        }
+        else if (!isMissingToken(endToken)) {
+            this.endToken = toPosition(endToken);
         }
 	}
     
+    /**
+     * The position of the given token in the source map
+     * of this node.
+     */
+    private int toPosition(Token token) {
+        if (token==null) {
+            return SourceMap.NONE;
+        }
+        if (sourceMap==null) {
+            sourceMap = SourceMap.getCurrent();
+        }
+        return sourceMap.indexOf(token);
+    }
+    
+    /**
+     * The position in the source map of this node of the
+     * token at the given position in the source map of
+     * the given node.
+     */
+    private int toPosition(Node node, int position) {
+        if (position==SourceMap.NONE || 
+                node.sourceMap==sourceMap) {
+            return position;
+        }
+        else if (sourceMap==null) {
+            //no position of this node refers to a map yet
+            sourceMap = node.sourceMap;
+            return position;
+        }
+        else {
+            return sourceMap.indexOf(node.sourceMap.getToken(position));
+        }
+    }
+    
+    //the raw state of the node, for NodeOutput and NodeInput
+    
+    /**
+     * The text assigned to this node, if any. Overridden
+     * by the node types which usually have a text, such as
+     * identifiers and literals, to hold it in a field, the
+     * text of any other node being held by the source map.
+     */
+    String getRawText() {
+        return sourceMap==null ? 
+                null : sourceMap.getNodeText(this);
+    }
+    
+    void setRawText(String text) {
+        if (sourceMap==null) {
+            if (text==null) {
+                return;
+            }
+            sourceMap = SourceMap.getCurrent();
+        }
+        sourceMap.setNodeText(this, text);
+    }
+    
+    Token getRawFirstChildToken() {
+        return toToken(firstChildToken);
+    }
+    
+    Token getRawLastChildToken() {
+        return toToken(lastChildToken);
+    }
+    
+    void setRawChildTokens(Token firstChildToken, Token lastChildToken) {
+        this.firstChildToken = toPosition(firstChildToken);
+        this.lastChildToken = toPosition(lastChildToken);
+    }
+    
     /**
      * The compilation errors belonging to this node.
      */
     public List<Message> getErrors() {
+        List<Message> errors = sourceMap==null ? 
+                null : sourceMap.getNodeErrors(this);
         return errors != null ? errors : Collections.<Message>emptyList();
     }
     
     public void addError(Message error){
-        if(errors == null)
-            errors = new ArrayList<Message>(2);
-        errors.add(error);
+        if (sourceMap==null) {
+            sourceMap = SourceMap.getCurrent();
+        }
+        sourceMap.addNodeError(this, error);
+        MessageListener listener = messageListener.get();
+        if (listener!=null) {
+            listener.messageAdded(this, error);
+        }
+    }
+    
+    /**
+     * Notify the given listener of every message added to
+     * any node by the current thread, or nobody if it is
+     * null.
+     * 
+     * @return the previous listener of the current thread
+     */
+    public static MessageListener setMessageListener(MessageListener listener) {
+        MessageListener previous = messageListener.get();
+        if (listener==null) {
+            messageListener.remove();
+        }
+        else {
+            messageListener.set(listener);
+        }
+        return previous;
     }
     
     public void addError(String message) {
@@ -265,16 +392,20 @@ public abstract class Node {
 	
 	public void connect(Node child) {
 		if (child!=null) {
-			Token childFirstChildToken = child.getFirstChildToken();
-            if (childFirstChildToken!=null &&
-                    (firstChildToken==null || 
-			        childFirstChildToken.getTokenIndex()<firstChildToken.getTokenIndex())) {
+			int childFirstChildToken = 
+			        toPosition(child, child.getFirstChildToken());
+            if (childFirstChildToken!=SourceMap.NONE &&
+                    (firstChildToken==SourceMap.NONE || 
+			        sourceMap.getTokenIndex(childFirstChildToken) <
+			                sourceMap.getTokenIndex(firstChildToken))) {
 			    firstChildToken = childFirstChildToken;
 			}
-            Token childLastChildToken = child.getLastChildToken();
-            if (childLastChildToken!=null &&
-                    (lastChildToken==null || 
-                    childLastChildToken.getTokenIndex()>lastChildToken.getTokenIndex())) {
+            int childLastChildToken = 
+                    toPosition(child, child.getLastChildToken());
+            if (childLastChildToken!=SourceMap.NONE &&
+                    (lastChildToken==SourceMap.NONE || 
+                    sourceMap.getTokenIndex(childLastChildToken) >
+                            sourceMap.getTokenIndex(lastChildToken))) {
                 lastChildToken = childLastChildToken;
             }
 		}
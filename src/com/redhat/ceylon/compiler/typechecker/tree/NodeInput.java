@@ -0,0 +1,213 @@
+package com.redhat.ceylon.compiler.typechecker.tree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+
+/**
+ * Reads back a token stream and a syntax tree written by
+ * {@link NodeOutput}.
+ */
+public class NodeInput {
+
+    private final byte[] bytes;
+    private int position;
+    private int line;
+    private int stop = -1;
+    private final List<CommonToken> tokens =
+            new ArrayList<CommonToken>();
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final List<String> strings = new ArrayList<String>();
+    private boolean newNode;
+    private int nodeKind;
+
+    public NodeInput(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public List<CommonToken> readTokens() throws IOException {
+        int size = readInt();
+        List<CommonToken> result = new ArrayList<CommonToken>(size);
+        for (int i=0; i<size; i++) {
+            CommonToken token = readTokenFields(i);
+            result.add(token);
+            tokens.add(token);
+        }
+        return result;
+    }
+
+    public Tree.CompilationUnit readCompilationUnit()
+            throws IOException {
+        SourceMap previous = 
+                SourceMap.setCurrent(new SourceMap(tokens));
+        Node node;
+        try {
+            node = Serializer.readNode(this);
+        }
+        finally {
+            SourceMap.setCurrent(previous);
+        }
+        if (node instanceof Tree.CompilationUnit) {
+            return (Tree.CompilationUnit) node;
+        }
+        else {
+            throw new IOException("not a compilation unit: " + node);
+        }
+    }
+
+    private int readUnsigned() throws IOException {
+        int result = 0;
+        for (int shift=0; shift<32; shift+=7) {
+            if (position>=bytes.length) {
+                throw new EOFException();
+            }
+            byte b = bytes[position++];
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80)==0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed integer");
+    }
+
+    public int readInt() throws IOException {
+        int value = readUnsigned();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public boolean readBoolean() throws IOException {
+        if (position>=bytes.length) {
+            throw new EOFException();
+        }
+        return bytes[position++]!=0;
+    }
+
+    public String readString() throws IOException {
+        int index = readUnsigned();
+        if (index==0) {
+            return null;
+        }
+        else if (index==1) {
+            int length = readUnsigned();
+            if (length<0 || position+length>bytes.length) {
+                throw new EOFException();
+            }
+            String string = new String(bytes, position, length,
+                    StandardCharsets.UTF_8);
+            position += length;
+            strings.add(string);
+            return string;
+        }
+        else {
+            return strings.get(index-2);
+        }
+    }
+
+    Token readToken() throws IOException {
+        int index = readUnsigned();
+        if (index==0) {
+            return null;
+        }
+        else if (index==1) {
+            return readTokenFields(-1);
+        }
+        else {
+            return tokens.get(index-2);
+        }
+    }
+
+    private CommonToken readTokenFields(int index) throws IOException {
+        boolean missing = readBoolean();
+        int type = readInt();
+        CommonToken token = missing ?
+                new MissingToken(type, null) :
+                new CommonToken(type);
+        token.setChannel(readInt());
+        line += readInt();
+        token.setLine(line);
+        token.setCharPositionInLine(readInt());
+        token.setTokenIndex(index+readInt());
+        int start = stop+1+readInt();
+        stop = start+readInt();
+        token.setStartIndex(start);
+        token.setStopIndex(stop);
+        token.setText(readString());
+        return token;
+    }
+
+    /**
+     * Read the kind, variant, and tokens of a node, creating
+     * it, unless it is null or has already been read,
+     * as indicated by {@link #isNewNode()}.
+     */
+    Node readNodeStart() throws IOException {
+        int tag = readUnsigned();
+        if (tag==NodeOutput.NULL) {
+            newNode = false;
+            return null;
+        }
+        else if (tag==NodeOutput.REFERENCE) {
+            newNode = false;
+            return nodes.get(readUnsigned());
+        }
+        else if (tag==NodeOutput.NODE) {
+            nodeKind = readUnsigned();
+            int variant = readUnsigned();
+            Token token = readToken();
+            Node node = variant==0 ?
+                    Serializer.createNode(nodeKind, token) :
+                    CustomTree.createVariant(variant, token);
+            if (node==null) {
+                throw new IOException("unknown node kind: " + 
+                        nodeKind + "/" + variant);
+            }
+            nodes.add(node);
+            node.setEndToken(readToken());
+            String text = readString();
+            if (text!=null) {
+                node.setText(text);
+            }
+            newNode = true;
+            return node;
+        }
+        else {
+            throw new IOException("malformed tree");
+        }
+    }
+
+    /**
+     * Was the node returned by the last call to
+     * {@link #readNodeStart()} created by it?
+     */
+    boolean isNewNode() {
+        return newNode;
+    }
+
+    /**
+     * The kind of the node last created by
+     * {@link #readNodeStart()}.
+     */
+    int getNodeKind() {
+        return nodeKind;
+    }
+
+    void readNodeEnd(Node node) throws IOException {
+        if (node instanceof CustomTree.ExtendedTypeExpression) {
+            //not defined in the node definitions
+            ((CustomTree.ExtendedTypeExpression) node)
+                    .setExtendedType((Tree.SimpleType) Serializer.readNode(this));
+        }
+        //override whatever was computed while adding
+        //the children, since the parser does not always
+        //connect children in the same order
+        Token firstChildToken = readToken();
+        Token lastChildToken = readToken();
+        node.setRawChildTokens(firstChildToken, lastChildToken);
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.redhat.ceylon.compiler.typechecker.tree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+
+/**
+ * Writes a token stream and the syntax tree parsed from
+ * it in the compact binary form read by {@link NodeInput}.
+ * The fields of each kind of node are written by the
+ * {@link Serializer} generated from the node definitions.
+ *
+ * Integers are written as variable length quantities,
+ * token offsets relative to the previous token, tokens
+ * belonging to the token stream as indexes into it,
+ * repeated strings as indexes into a string table, and
+ * a node reachable from two parents as a reference to
+ * its first occurrence.
+ */
+public class NodeOutput {
+
+    static final int NULL = 0;
+    static final int NODE = 1;
+    static final int REFERENCE = 2;
+
+    private byte[] bytes = new byte[8192];
+    private int count;
+    private int line;
+    private int stop = -1;
+    private final Map<Token,Integer> tokens =
+            new IdentityHashMap<Token,Integer>();
+    private final Map<Node,Integer> nodes =
+            new IdentityHashMap<Node,Integer>();
+    private final Map<String,Integer> strings =
+            new HashMap<String,Integer>();
+
+    public void writeTokens(List<CommonToken> tokenList)
+            throws IOException {
+        writeInt(tokenList.size());
+        for (int i=0,l=tokenList.size();i<l;i++) {
+            CommonToken token = tokenList.get(i);
+            writeTokenFields(token, i);
+            tokens.put(token, i);
+        }
+    }
+
+    public void writeCompilationUnit(Tree.CompilationUnit cu)
+            throws IOException {
+        Serializer.writeNode(this, cu);
+    }
+
+    /**
+     * Write everything written so far to the given stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, count);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count+extra>bytes.length) {
+            bytes = Arrays.copyOf(bytes,
+                    Math.max(bytes.length*2, count+extra));
+        }
+    }
+
+    private void writeUnsigned(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F)!=0) {
+            bytes[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[count++] = (byte) value;
+    }
+
+    public void writeInt(int value) throws IOException {
+        //zig-zag, so that small negative values are short
+        writeUnsigned((value << 1) ^ (value >> 31));
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        ensureCapacity(1);
+        bytes[count++] = (byte) (value ? 1 : 0);
+    }
+
+    public void writeString(String string) throws IOException {
+        if (string==null) {
+            writeUnsigned(0);
+            return;
+        }
+        Integer index = strings.get(string);
+        if (index!=null) {
+            writeUnsigned(index+2);
+        }
+        else {
+            strings.put(string, strings.size());
+            byte[] utf = string.getBytes(StandardCharsets.UTF_8);
+            writeUnsigned(1);
+            writeUnsigned(utf.length);
+            ensureCapacity(utf.length);
+            System.arraycopy(utf, 0, bytes, count, utf.length);
+            count += utf.length;
+        }
+    }
+
+    void writeToken(Token token) throws IOException {
+        if (token==null) {
+            writeUnsigned(0);
+            return;
+        }
+        Integer index = tokens.get(token);
+        if (index!=null) {
+            writeUnsigned(index+2);
+        }
+        else {
+            //a token which does not belong to the
+            //token stream, write it out in full
+            writeUnsigned(1);
+            writeTokenFields(token, -1);
+        }
+    }
+
+    private void writeTokenFields(Token token, int index)
+            throws IOException {
+        int start = -1;
+        int stop = -1;
+        if (token instanceof CommonToken) {
+            start = ((CommonToken) token).getStartIndex();
+            stop = ((CommonToken) token).getStopIndex();
+        }
+        writeBoolean(token instanceof MissingToken);
+        writeInt(token.getType());
+        writeInt(token.getChannel());
+        writeInt(token.getLine()-line);
+        writeInt(token.getCharPositionInLine());
+        writeInt(token.getTokenIndex()-index);
+        writeInt(start-(this.stop+1));
+        writeInt(stop-start);
+        writeString(token.getText());
+        line = token.getLine();
+        this.stop = stop;
+    }
+
+    /**
+     * Write the kind, variant, and tokens of the given
+     * node, returning true if its fields must be written
+     * next, or false if it is null or has already been
+     * written.
+     */
+    boolean writeNodeStart(Node node, int kind) throws IOException {
+        if (node==null) {
+            writeUnsigned(NULL);
+            return false;
+        }
+        Integer index = nodes.get(node);
+        if (index!=null) {
+            writeUnsigned(REFERENCE);
+            writeUnsigned(index);
+            return false;
+        }
+        nodes.put(node, nodes.size());
+        int variant = CustomTree.variantOf(node);
+        if (variant==0 && node.getClass().getDeclaringClass()!=Tree.class) {
+            throw new IOException("unknown node class: " + 
+                    node.getClass().getName());
+        }
+        writeUnsigned(NODE);
+        writeUnsigned(kind);
+        writeUnsigned(variant);
+        writeToken(node.getMainToken());
+        writeToken(node.getMainEndToken());
+        writeString(node.getRawText());
+        return true;
+    }
+
+    void writeNodeEnd(Node node) throws IOException {
+        if (node instanceof CustomTree.ExtendedTypeExpression) {
+            //not defined in the node definitions
+            Serializer.writeNode(this,
+                    ((CustomTree.ExtendedTypeExpression) node).getType());
+        }
+        writeToken(node.getRawFirstChildToken());
+        writeToken(node.getRawLastChildToken());
+    }
+
+}
@@ -0,0 +1,365 @@
+package com.redhat.ceylon.compiler.typechecker.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+
+/**
+ * The tokens of a compilation unit, to which the nodes of
+ * its tree refer by their int position, instead of holding
+ * references to the tokens themselves.
+ *
+ * A position is either the index of a token of the token
+ * stream of the unit, or, for a token which does not belong
+ * to the token stream, such as the tokens ANTLR inserts to
+ * represent missing tokens, the encoded index of a foreign
+ * token held by the map. {@link #NONE} stands for no token.
+ *
+ * Once the map is {@link #freeze() frozen}, the token
+ * stream is dropped, and the fields of its tokens are held
+ * in arrays, so that the source text, and the tokens of
+ * the stream, may be garbage collected. A token requested
+ * by {@link #getToken(int)} is then recreated once, and
+ * kept, so that it is the same token on every request.
+ *
+ * The map also holds the {@link Node#getErrors() errors}
+ * of the few nodes which have them, and the text of any
+ * node which has no field for its text, instead of a
+ * field of every node. The nodes created by a parser, or
+ * by the visitors of the phases of a unit, share the map
+ * of the unit.
+ */
+public final class SourceMap {
+
+    /**
+     * The position standing for no token.
+     */
+    public static final int NONE = -1;
+
+    private static final ThreadLocal<SourceMap> current =
+            new ThreadLocal<SourceMap>();
+
+    private List<? extends Token> tokens;
+    private final List<Token> foreignTokens =
+            new ArrayList<Token>(0);
+
+    //the fields of the tokens of the stream, once frozen
+    private int[] kinds;
+    private int[] lines;
+    private int[] columns;
+    private int[] starts;
+    private int[] stops;
+    private String[] texts;
+    //the tokens recreated since the map was frozen
+    private CommonToken[] copies;
+
+    private volatile Map<Node,String> nodeTexts;
+    private volatile Map<Node,List<Message>> nodeErrors;
+
+    /**
+     * A map of the given token stream, which must be the
+     * list of tokens filled in by the lexer, indexed by
+     * their {@link Token#getTokenIndex() token index}.
+     */
+    public SourceMap(List<? extends Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Create the nodes of the current thread with the given
+     * map, or, if it is null, with a map of their own.
+     *
+     * @return the previous map of the current thread
+     */
+    public static SourceMap setCurrent(SourceMap map) {
+        SourceMap previous = current.get();
+        if (map==null) {
+            current.remove();
+        }
+        else {
+            current.set(map);
+        }
+        return previous;
+    }
+
+    /**
+     * The map of a node created by the current thread. A
+     * node created outside of a parser or of the phases
+     * of a unit gets a map of its own.
+     */
+    static SourceMap getCurrent() {
+        SourceMap map = current.get();
+        if (map==null) {
+            //a node created outside of a parser, with a
+            //token which may come from anywhere
+            map = new SourceMap(Collections.<Token>emptyList());
+        }
+        return map;
+    }
+
+    public boolean isFrozen() {
+        return tokens==null;
+    }
+
+    /**
+     * Drop the token stream, keeping only the fields of its
+     * tokens, and detach the foreign tokens from the source
+     * text. Equal token texts are shared, and the texts of
+     * the tokens of hidden channels, such as whitespace and
+     * comments, are dropped.
+     */
+    public synchronized void freeze() {
+        if (tokens==null) {
+            return;
+        }
+        Map<String,String> sharedTexts =
+                new HashMap<String,String>();
+        int size = tokens.size();
+        kinds = new int[size];
+        lines = new int[size];
+        columns = new int[size];
+        starts = new int[size];
+        stops = new int[size];
+        texts = new String[size];
+        for (int i=0; i<size; i++) {
+            CommonToken token = (CommonToken) tokens.get(i);
+            int channel = token.getChannel();
+            //the channel is always 0 or 99
+            kinds[i] = token.getType()<<16 | channel;
+            lines[i] = token.getLine();
+            columns[i] = token.getCharPositionInLine();
+            starts[i] = token.getStartIndex();
+            stops[i] = token.getStopIndex();
+            if (channel==Token.DEFAULT_CHANNEL) {
+                texts[i] = share(sharedTexts, token.getText());
+            }
+        }
+        for (int i=0,l=foreignTokens.size();i<l;i++) {
+            Token token = foreignTokens.get(i);
+            String text = share(sharedTexts, token.getText());
+            CommonToken copy = token instanceof MissingToken ?
+                    new MissingToken(token.getType(), text) :
+                    new CommonToken(token.getType(), text);
+            copy.setChannel(token.getChannel());
+            copy.setLine(token.getLine());
+            copy.setCharPositionInLine(token.getCharPositionInLine());
+            copy.setTokenIndex(token.getTokenIndex());
+            if (token instanceof CommonToken) {
+                copy.setStartIndex(((CommonToken) token).getStartIndex());
+                copy.setStopIndex(((CommonToken) token).getStopIndex());
+            }
+            foreignTokens.set(i, copy);
+        }
+        tokens = null;
+    }
+
+    private static String share(Map<String,String> sharedTexts,
+            String text) {
+        if (text==null) {
+            return null;
+        }
+        String shared = sharedTexts.get(text);
+        if (shared==null) {
+            sharedTexts.put(text, text);
+            return text;
+        }
+        else {
+            return shared;
+        }
+    }
+
+    /**
+     * The position of the given token, adding it to the
+     * foreign tokens if it does not belong to the token
+     * stream.
+     */
+    public int indexOf(Token token) {
+        if (token==null) {
+            return NONE;
+        }
+        int index = token.getTokenIndex();
+        List<? extends Token> tokens = this.tokens;
+        if (tokens!=null && index>=0 &&
+                index<tokens.size() &&
+                tokens.get(index)==token &&
+                !(token instanceof MissingToken)) {
+            return index;
+        }
+        synchronized (this) {
+            if (copies!=null && index>=0 &&
+                    index<copies.length &&
+                    copies[index]==token) {
+                //a token recreated by getToken()
+                return index;
+            }
+            for (int i=0,l=foreignTokens.size();i<l;i++) {
+                if (foreignTokens.get(i)==token) {
+                    return -2-i;
+                }
+            }
+            foreignTokens.add(token);
+            return -1-foreignTokens.size();
+        }
+    }
+
+    private synchronized Token getForeignToken(int position) {
+        return foreignTokens.get(-2-position);
+    }
+
+    /**
+     * The token at the given position, which, once the map
+     * is frozen, is a copy of the token of the stream,
+     * created by the first request for it.
+     */
+    public Token getToken(int position) {
+        if (position==NONE) {
+            return null;
+        }
+        else if (position<NONE) {
+            return getForeignToken(position);
+        }
+        List<? extends Token> tokens = this.tokens;
+        if (tokens!=null) {
+            return tokens.get(position);
+        }
+        else {
+            return getCopy(position);
+        }
+    }
+
+    private synchronized CommonToken getCopy(int position) {
+        if (copies==null) {
+            copies = new CommonToken[kinds.length];
+        }
+        CommonToken token = copies[position];
+        if (token==null) {
+            int kind = kinds[position];
+            token = new CommonToken(kind>>16, texts[position]);
+            token.setChannel(kind & 0xFFFF);
+            token.setLine(lines[position]);
+            token.setCharPositionInLine(columns[position]);
+            token.setTokenIndex(position);
+            token.setStartIndex(starts[position]);
+            token.setStopIndex(stops[position]);
+            copies[position] = token;
+        }
+        return token;
+    }
+
+    /**
+     * Does the given position refer to one of the tokens
+     * ANTLR inserts to represent missing tokens, which
+     * don't come with useful offset information?
+     */
+    public boolean isMissing(int position) {
+        return position<NONE &&
+                getForeignToken(position) instanceof MissingToken;
+    }
+
+    public int getType(int position) {
+        if (position>=0 && tokens==null) {
+            return kinds[position]>>16;
+        }
+        else {
+            return getToken(position).getType();
+        }
+    }
+
+    public int getTokenIndex(int position) {
+        if (position>=0) {
+            return position;
+        }
+        else {
+            return getForeignToken(position).getTokenIndex();
+        }
+    }
+
+    public int getLine(int position) {
+        if (position>=0 && tokens==null) {
+            return lines[position];
+        }
+        else {
+            return getToken(position).getLine();
+        }
+    }
+
+    public int getCharPositionInLine(int position) {
+        if (position>=0 && tokens==null) {
+            return columns[position];
+        }
+        else {
+            return getToken(position).getCharPositionInLine();
+        }
+    }
+
+    public int getStartIndex(int position) {
+        if (position>=0 && tokens==null) {
+            return starts[position];
+        }
+        else {
+            return ((CommonToken) getToken(position)).getStartIndex();
+        }
+    }
+
+    public int getStopIndex(int position) {
+        if (position>=0 && tokens==null) {
+            return stops[position];
+        }
+        else {
+            return ((CommonToken) getToken(position)).getStopIndex();
+        }
+    }
+
+    public String getText(int position) {
+        if (position>=0 && tokens==null) {
+            return texts[position];
+        }
+        else {
+            return getToken(position).getText();
+        }
+    }
+
+    String getNodeText(Node node) {
+        Map<Node,String> nodeTexts = this.nodeTexts;
+        return nodeTexts==null ? null : nodeTexts.get(node);
+    }
+
+    synchronized void setNodeText(Node node, String text) {
+        if (nodeTexts==null) {
+            if (text==null) {
+                return;
+            }
+            nodeTexts = new ConcurrentHashMap<Node,String>();
+        }
+        if (text==null) {
+            nodeTexts.remove(node);
+        }
+        else {
+            nodeTexts.put(node, text);
+        }
+    }
+
+    List<Message> getNodeErrors(Node node) {
+        Map<Node,List<Message>> nodeErrors = this.nodeErrors;
+        return nodeErrors==null ? null : nodeErrors.get(node);
+    }
+
+    synchronized void addNodeError(Node node, Message error) {
+        if (nodeErrors==null) {
+            nodeErrors = new ConcurrentHashMap<Node,List<Message>>();
+        }
+        List<Message> errors = nodeErrors.get(node);
+        if (errors==null) {
+            errors = new ArrayList<Message>(2);
+            nodeErrors.put(node, errors);
+        }
+        errors.add(error);
+    }
+
+}
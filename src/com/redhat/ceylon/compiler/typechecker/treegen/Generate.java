@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.security.MessageDigest;
 
 import org.antlr.runtime.ANTLRInputStream;
 import org.antlr.runtime.CommonTokenStream;
@@ -21,6 +22,7 @@ public class Generate {
         visitor(file);
         visitorAdaptor(file);
         validator(file);
+        serializer(file);
     }
     
     private static void tree(File file) throws Exception {
@@ -95,4 +97,50 @@ public class Generate {
         parser.nodeList();
     }
     
+    private static void serializer(File file) throws Exception {
+        Util.grammarVersion = grammarVersion(file);
+        InputStream is = new FileInputStream( file );
+        ANTLRInputStream input = new ANTLRInputStream(is);
+        SerializergenLexer lexer = new SerializergenLexer(input);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        SerializergenParser parser = new SerializergenParser(tokens);
+        File out = new File( GENERATED_PACKAGE_DIR + "Serializer.java" );
+        out.createNewFile();
+        Util.out=new PrintStream(out);
+        parser.nodeList();
+    }
+    
+    /**
+     * A hash of the node definitions, and of the Ceylon 
+     * grammar next to them, identifying the trees that 
+     * a given serializer can read back.
+     */
+    private static String grammarVersion(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        update(digest, file);
+        File grammar = new File(file.getAbsoluteFile().getParentFile(), "Ceylon.g");
+        if (grammar.exists()) {
+            update(digest, grammar);
+        }
+        StringBuilder result = new StringBuilder();
+        for (byte b: digest.digest()) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+    
+    private static void update(MessageDigest digest, File file) throws Exception {
+        InputStream is = new FileInputStream( file );
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer))>0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        finally {
+            is.close();
+        }
+    }
+    
 }
@@ -3,6 +3,8 @@ package com.redhat.ceylon.compiler.typechecker.treegen;
 public class Util {
     
     static java.io.PrintStream out = System.out;
+    
+    static String grammarVersion = "";
 
     public static String className(String nodeName) { 
         return toJavaIdentifier(nodeName, true); 
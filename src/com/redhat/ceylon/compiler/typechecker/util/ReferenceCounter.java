@@ -35,6 +35,10 @@ public class ReferenceCounter extends Visitor {
 		}
 	}
 	
+	public Set<Declaration> getReferencedDeclarations() {
+		return referencedDeclarations;
+	}
+	
 	boolean isReferenced(Declaration d) {
 		for (Declaration rd: referencedDeclarations) {
 		    if (rd.getContainer().equals(d.getContainer()) &&
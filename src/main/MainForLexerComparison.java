@@ -0,0 +1,168 @@
+package main;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.TokenSource;
+
+import com.redhat.ceylon.compiler.typechecker.parser.CeylonLexer;
+import com.redhat.ceylon.compiler.typechecker.parser.CeylonScanner;
+import com.redhat.ceylon.compiler.typechecker.parser.LexError;
+import com.redhat.ceylon.compiler.typechecker.parser.SourceStream;
+
+/**
+ * Lexes every .ceylon file of the given directories with
+ * both the {@link CeylonLexer} generated from the grammar
+ * and the hand written {@link CeylonScanner}, and fails if
+ * they produce different tokens or lexer errors. Then
+ * reports the throughput of both lexers over the same
+ * files, for the number of rounds given by the system
+ * property rounds, none if it is 0.
+ */
+public class MainForLexerComparison {
+
+    public static void main(String[] args) throws Exception {
+        if ( args.length==0 ) {
+            System.err.println("Usage MainForLexerComparison <directoryNames>");
+            System.exit(-1);
+            return;
+        }
+
+        int rounds = Integer.parseInt(System.getProperty("rounds", "10"));
+        String encoding = System.getProperty("encoding");
+        List<File> files = new ArrayList<File>();
+        for (String path: args) {
+            collect(new File(path), files);
+        }
+        List<ByteBuffer> contents = new ArrayList<ByteBuffer>(files.size());
+        long size = 0;
+        for (File file: files) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            contents.add(ByteBuffer.wrap(content));
+            size += content.length;
+        }
+
+        int differences = 0;
+        long tokens = 0;
+        for (int i=0; i<files.size(); i++) {
+            ByteBuffer content = contents.get(i);
+            CeylonLexer lexer =
+                    new CeylonLexer(SourceStream.decode(content, encoding));
+            CeylonScanner scanner =
+                    new CeylonScanner(SourceStream.decode(content, encoding));
+            List<Token> expected = lex(lexer);
+            List<Token> actual = lex(scanner);
+            tokens += expected.size();
+            String difference = compare(expected, actual);
+            if (difference==null) {
+                difference = compareErrors(lexer.getErrors(),
+                        scanner.getErrors());
+            }
+            if (difference!=null) {
+                differences++;
+                System.out.println(files.get(i) + ": " + difference);
+            }
+        }
+        System.out.println("Compared " + tokens + " tokens of " +
+                files.size() + " files: " + differences +
+                " files lexed differently");
+        if (differences>0) {
+            throw new RuntimeException("CeylonScanner and CeylonLexer disagree on " +
+                    differences + " files");
+        }
+
+        for (int round=0; round<rounds; round++) {
+            long lexerTime = 0;
+            long scannerTime = 0;
+            for (int i=0; i<contents.size(); i++) {
+                ByteBuffer content = contents.get(i);
+                long start = System.nanoTime();
+                lex(new CeylonLexer(SourceStream.decode(content, encoding)));
+                lexerTime += System.nanoTime()-start;
+                start = System.nanoTime();
+                lex(new CeylonScanner(SourceStream.decode(content, encoding)));
+                scannerTime += System.nanoTime()-start;
+            }
+            System.out.println("Round " + (round+1) +
+                    ": CeylonLexer " + throughput(size, lexerTime) +
+                    ", CeylonScanner " + throughput(size, scannerTime));
+        }
+    }
+
+    private static void collect(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children!=null) {
+                for (File child: children) {
+                    collect(child, files);
+                }
+            }
+        }
+        else if (file.getName().endsWith(".ceylon")) {
+            files.add(file);
+        }
+    }
+
+    private static List<Token> lex(TokenSource source) {
+        List<Token> tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = source.nextToken();
+            tokens.add(token);
+        }
+        while (token.getType()!=Token.EOF);
+        return tokens;
+    }
+
+    /**
+     * A description of the first difference between the
+     * two lists of tokens, or null if there is none.
+     */
+    private static String compare(List<Token> expected, List<Token> actual) {
+        for (int i=0, l=Math.min(expected.size(), actual.size()); i<l; i++) {
+            String e = describe(expected.get(i));
+            String a = describe(actual.get(i));
+            if (!e.equals(a)) {
+                return "token " + i + " is " + a + ", expected " + e;
+            }
+        }
+        if (expected.size()!=actual.size()) {
+            return actual.size() + " tokens, expected " + expected.size();
+        }
+        return null;
+    }
+
+    private static String compareErrors(List<LexError> expected,
+            List<LexError> actual) {
+        for (int i=0, l=Math.min(expected.size(), actual.size()); i<l; i++) {
+            String e = expected.get(i).getHeader() + " " +
+                    expected.get(i).getMessage();
+            String a = actual.get(i).getHeader() + " " +
+                    actual.get(i).getMessage();
+            if (!e.equals(a)) {
+                return "error " + i + " is " + a + ", expected " + e;
+            }
+        }
+        if (expected.size()!=actual.size()) {
+            return actual.size() + " errors, expected " + expected.size();
+        }
+        return null;
+    }
+
+    private static String describe(Token token) {
+        CommonToken ct = (CommonToken) token;
+        return token.getType() + "/" + token.getChannel() + " '" +
+                token.getText() + "' at " + token.getLine() + ":" +
+                token.getCharPositionInLine() + " [" +
+                ct.getStartIndex() + "," + ct.getStopIndex() + "]";
+    }
+
+    private static String throughput(long size, long nanos) {
+        return (size*1000/Math.max(nanos, 1)) + "MB/s";
+    }
+
+}
@@ -0,0 +1,33 @@
+package main;
+import java.io.File;
+
+import com.redhat.ceylon.compiler.typechecker.TypeCheckerBuilder;
+import com.redhat.ceylon.compiler.typechecker.parser.ParserProfile;
+
+/**
+ * Parses the given source directories with a profiling
+ * parser, and reports the backtracking decisions, rules,
+ * and units which cost the most. The number of entries
+ * reported may be set with the system property count.
+ */
+public class MainForParserProfile {
+
+    public static void main(String[] args) throws Exception {
+        if ( args.length==0 ) {
+            System.err.println("Usage MainForParserProfile <directoryNames>");
+            System.exit(-1);
+            return;
+        }
+
+        int count = Integer.parseInt(System.getProperty("count", "20"));
+        ParserProfile profile = new ParserProfile();
+        TypeCheckerBuilder tcb = new TypeCheckerBuilder()
+                .parserProfile(profile);
+        for (String path: args) {
+            tcb.addSrcDirectory(new File(path));
+        }
+        //parses the source directories
+        tcb.getTypeChecker();
+        profile.print(System.out, count);
+    }
+}
@@ -0,0 +1,150 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.redhat.ceylon.compiler.typechecker.TypeChecker;
+import com.redhat.ceylon.compiler.typechecker.TypeCheckerBuilder;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.context.ProducedTypeCache;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
+
+/**
+ * Type checks a few source files, changes the superclass
+ * of a class declared by one of them, and type checks the
+ * changed file again with {@link TypeChecker#recheck}.
+ * Fails unless the units which depend on the changed file
+ * are type checked again, the other units are left alone,
+ * the units keep their order, and the supertypes cached
+ * for the old declarations are dropped.
+ */
+public class MainForRecheck {
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("recheck").toFile();
+        try {
+            write(dir, "hierarchy.ceylon",
+                    "shared class Base() {}\n" +
+                    "shared class Other() {}\n" +
+                    "shared class Derived() extends Base() {}\n");
+            write(dir, "dependent.ceylon",
+                    "shared class Sub() extends Derived() {}\n");
+            write(dir, "unrelated.ceylon",
+                    "shared class Unrelated() {}\n");
+
+            TypeChecker typeChecker = new TypeCheckerBuilder()
+                    .verbose(false)
+                    .addSrcDirectory(dir)
+                    .getTypeChecker();
+            typeChecker.process();
+
+            List<String> order = paths(typeChecker);
+            PhasedUnit unrelated =
+                    typeChecker.getPhasedUnitFromRelativePath("unrelated.ceylon");
+            TypeDeclaration derived = declaration(typeChecker,
+                    "hierarchy.ceylon", "Derived");
+            TypeDeclaration base = declaration(typeChecker,
+                    "hierarchy.ceylon", "Base");
+            ProducedType derivedType = derived.getType();
+            ProducedTypeCache cache =
+                    derived.getUnit().getPackage().getModule().getCache();
+            if (derivedType.getSupertype(base)==null ||
+                    !cache.containsKey(derivedType, base)) {
+                throw new RuntimeException("Supertype of Derived not cached");
+            }
+
+            write(dir, "hierarchy.ceylon",
+                    "shared class Base() {}\n" +
+                    "shared class Other() {}\n" +
+                    "shared class Derived() extends Other() {}\n");
+            PhasedUnit changed =
+                    typeChecker.getPhasedUnitFromRelativePath("hierarchy.ceylon");
+            List<PhasedUnit> rechecked = typeChecker.recheck(
+                    Collections.singletonList(changed.getUnitFile()));
+
+            List<String> recheckedPaths = new ArrayList<String>();
+            for (PhasedUnit pu: rechecked) {
+                recheckedPaths.add(pu.getPathRelativeToSrcDir());
+                if (!pu.isFullyTyped()) {
+                    throw new RuntimeException("Not type checked again: " +
+                            pu.getPathRelativeToSrcDir());
+                }
+            }
+            if (!recheckedPaths.contains("hierarchy.ceylon") ||
+                    !recheckedPaths.contains("dependent.ceylon") ||
+                    recheckedPaths.contains("unrelated.ceylon")) {
+                throw new RuntimeException("Wrong units type checked again: " +
+                        recheckedPaths);
+            }
+            if (typeChecker.getPhasedUnitFromRelativePath("unrelated.ceylon")!=unrelated) {
+                throw new RuntimeException("Unrelated unit replaced");
+            }
+            if (!paths(typeChecker).equals(order)) {
+                throw new RuntimeException("Units reordered: " + order +
+                        " became " + paths(typeChecker));
+            }
+
+            TypeDeclaration sub = declaration(typeChecker,
+                    "dependent.ceylon", "Sub");
+            TypeDeclaration newBase = declaration(typeChecker,
+                    "hierarchy.ceylon", "Base");
+            TypeDeclaration newOther = declaration(typeChecker,
+                    "hierarchy.ceylon", "Other");
+            if (!sub.inherits(newOther) || sub.inherits(newBase) ||
+                    sub.getType().getSupertype(newBase)!=null) {
+                throw new RuntimeException("Sub still typed against the old Derived");
+            }
+            if (cache.containsKey(derivedType, base)) {
+                throw new RuntimeException("Supertype of the old Derived still cached");
+            }
+        }
+        finally {
+            delete(dir);
+        }
+        System.out.println("Recheck test passed");
+    }
+
+    private static File write(File dir, String name, String source)
+            throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String> paths(TypeChecker typeChecker) {
+        List<String> paths = new ArrayList<String>();
+        for (PhasedUnit pu: typeChecker.getPhasedUnits().getPhasedUnits()) {
+            paths.add(pu.getPathRelativeToSrcDir());
+        }
+        return paths;
+    }
+
+    private static TypeDeclaration declaration(TypeChecker typeChecker,
+            String path, String name) {
+        PhasedUnit pu = typeChecker.getPhasedUnitFromRelativePath(path);
+        TypeDeclaration td = (TypeDeclaration) pu.getPackage()
+                .getDirectMember(name, null, false);
+        if (td==null || td.getUnit()!=pu.getUnit()) {
+            throw new RuntimeException("No declaration " + name +
+                    " in " + path);
+        }
+        return td;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children!=null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,175 @@
+grammar Serializergen;
+
+@parser::header {
+    package com.redhat.ceylon.compiler.typechecker.treegen;
+    import static com.redhat.ceylon.compiler.typechecker.treegen.Util.*;
+}
+@lexer::header {
+    package com.redhat.ceylon.compiler.typechecker.treegen;
+}
+
+@parser::members {
+    private StringBuilder kindCases = new StringBuilder();
+    private StringBuilder createCases = new StringBuilder();
+    private StringBuilder writeCases = new StringBuilder();
+    private StringBuilder readCases = new StringBuilder();
+    private StringBuilder writeBody;
+    private StringBuilder readBody;
+    private int kinds = 0;
+
+    private void single(String type, String name) {
+        writeBody.append("        writeNode(out, node.get" + name + "());\n");
+        readBody.append("        node.set" + name + "((" + type + ") readNode(in));\n");
+    }
+
+    private void many(String type, String name) {
+        writeBody.append("        writeNodes(out, node.get" + name + "s());\n");
+        readBody.append("        for (int i=0,l=in.readInt();i<l;i++) {\n");
+        readBody.append("            node.add" + name + "((" + type + ") readNode(in));\n");
+        readBody.append("        }\n");
+    }
+}
+
+nodeList :
+    {
+    println("package com.redhat.ceylon.compiler.typechecker.tree;\n");
+    println("import java.io.IOException;");
+    println("import java.util.List;");
+    println("import org.antlr.runtime.Token;");
+    println("import static com.redhat.ceylon.compiler.typechecker.tree.Tree.*;");
+    println("import static com.redhat.ceylon.compiler.typechecker.tree.Tree.Package;\n");
+    println("public class Serializer {\n");
+    println("    /**\n     * A hash of the node definitions and of the grammar\n     * from which this serializer was generated.\n     */");
+    println("    public static final String GRAMMAR_VERSION = \"" + grammarVersion + "\";\n");
+    }
+           (DESCRIPTION? node)+
+           EOF
+    {
+    println("    static void writeNodes(NodeOutput out, List<? extends Node> nodes) throws IOException {");
+    println("        out.writeInt(nodes.size());");
+    println("        for (int i=0,l=nodes.size();i<l;i++) {");
+    println("            writeNode(out, nodes.get(i));");
+    println("        }");
+    println("    }\n");
+    println("    /**\n     * The kind of the given node, which identifies its\n     * type in the serialized form, or 0 if it is null.\n     */");
+    println("    static int kindOf(Node node) throws IOException {");
+    println("        if (node==null) {");
+    println("            return 0;");
+    println("        }");
+    println("        switch (node.getNodeType()) {");
+    print(kindCases.toString());
+    println("        default:");
+    println("            throw new IOException(\"unknown node type: \" + node.getNodeType());");
+    println("        }");
+    println("    }\n");
+    println("    /**\n     * Instantiate a node of the given kind, or return\n     * null if there is no such kind.\n     */");
+    println("    static Node createNode(int kind, Token token) {");
+    println("        switch (kind) {");
+    print(createCases.toString());
+    println("        default:");
+    println("            return null;");
+    println("        }");
+    println("    }\n");
+    println("    public static void writeNode(NodeOutput out, Node node) throws IOException {");
+    println("        int kind = kindOf(node);");
+    println("        if (out.writeNodeStart(node, kind)) {");
+    println("            switch (kind) {");
+    print(writeCases.toString());
+    println("            }");
+    println("            out.writeNodeEnd(node);");
+    println("        }");
+    println("    }\n");
+    println("    public static Node readNode(NodeInput in) throws IOException {");
+    println("        Node node = in.readNodeStart();");
+    println("        if (in.isNewNode()) {");
+    println("            //an int switch, keeping this method small");
+    println("            //enough to be compiled by the VM");
+    println("            int kind = in.getNodeKind();");
+    println("            switch (kind) {");
+    print(readCases.toString());
+    println("            default:");
+    println("                throw new IOException(\"unknown node kind: \" + kind);");
+    println("            }");
+    println("            in.readNodeEnd(node);");
+    println("        }");
+    println("        return node;");
+    println("    }\n");
+    println("}");
+    }
+           ;
+
+node
+@init { boolean abs = false; String cn = null; }
+     : '^' '('
+       ('abstract' { abs = true; })?
+       n=NODE_NAME
+       { cn = className($n.text); }
+       { writeBody = new StringBuilder(); }
+       { readBody = new StringBuilder(); }
+       { if (!abs) {
+             kinds++;
+             kindCases.append("        case \"" + cn + "\":\n");
+             kindCases.append("            return " + kinds + ";\n");
+             createCases.append("        case " + kinds + ":\n");
+             createCases.append("            return new " + cn + "(token);\n");
+             writeCases.append("            case " + kinds + ":\n");
+             writeCases.append("                write" + cn + "(out, (" + cn + ") node);\n");
+             writeCases.append("                break;\n");
+             readCases.append("            case " + kinds + ":\n");
+             readCases.append("                read" + cn + "(in, (" + cn + ") node);\n");
+             readCases.append("                break;\n");
+         } }
+       extendsNode?
+       (DESCRIPTION? subnode)*
+       (DESCRIPTION? field)*
+       ')'
+       { println("    static void write" + cn + "(NodeOutput out, " + cn + " node) throws IOException {"); }
+       { print(writeBody.toString()); }
+       { println("    }\n"); }
+       { println("    static void read" + cn + "(NodeInput in, " + cn + " node) throws IOException {"); }
+       { print(readBody.toString()); }
+       { println("    }\n"); }
+     ;
+
+extendsNode : ':'
+              n=NODE_NAME
+              { writeBody.append("        write" + className($n.text) + "(out, node);\n"); }
+              { readBody.append("        read" + className($n.text) + "(in, node);\n"); }
+            ;
+
+subnode : n=NODE_NAME '?'? f=FIELD_NAME
+          { single(className($n.text), initialUpper($f.text)); }
+        | n=NODE_NAME '?'?
+          { single(className($n.text), className($n.text)); }
+        | mn=NODE_NAME '*'
+          { many(className($mn.text), className($mn.text)); }
+        | mn=NODE_NAME '*' f=FIELD_NAME
+          { many(className($mn.text), initialUpper($f.text)); }
+        ;
+
+field : 'boolean' f=FIELD_NAME ';'
+        { writeBody.append("        out.writeBoolean(node.get" + initialUpper($f.text) + "());\n"); }
+        { readBody.append("        node.set" + initialUpper($f.text) + "(in.readBoolean());\n"); }
+      | 'abstract'? TYPE_NAME FIELD_NAME ';'
+      ;
+
+NODE_NAME : ('A'..'Z'|'_')+;
+
+FIELD_NAME : ('a'..'z') ('a'..'z'|'A'..'Z')*;
+TYPE_NAME : ('A'..'Z') ('a'..'z'|'A'..'Z'|'<'|'>')*;
+
+WS : (' ' | '\n' | '\t' | '\r' | '\u000C') { skip(); };
+
+CARAT : '^';
+
+LPAREN : '(';
+RPAREN : ')';
+
+MANY : '*'|'+';
+OPTIONAL : '?';
+
+EXTENDS : ':';
+
+SEMI : ';';
+
+DESCRIPTION : '\"' (~'\"')* '\"';
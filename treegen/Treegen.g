@@ -82,7 +82,12 @@ subnode :
           { println("        public void add" + initialUpper($f.text) + "(" + className($mn.text) + " node) { " + $f.text + "s.add(node); connect(node); }\n"); }
         ;
 
-field : t=TYPE_NAME f=FIELD_NAME
+field : 'String' f=FIELD_NAME
+          { println("        private String " + $f.text+ ";"); }
+          { println("        @Override String getRaw" + initialUpper($f.text) + "() { return " + $f.text + "; }"); }
+          { println("        @Override void setRaw" + initialUpper($f.text) + "(String value) { " + $f.text + " = value; }\n"); }
+        ';'
+      | t=TYPE_NAME f=FIELD_NAME
           { println("        private com.redhat.ceylon.compiler.typechecker.model." + $t.text + " " + $f.text+ ";"); }
           { println("        public com.redhat.ceylon.compiler.typechecker.model." + $t.text + " get" + initialUpper($f.text) + "() { return " + $f.text + "; }"); }
           { println("        public void set" + initialUpper($f.text) + "(com.redhat.ceylon.compiler.typechecker.model." + $t.text + " value) { " + $f.text + " = value; }\n"); }